@@ -0,0 +1,97 @@
+package io.qdb.kvstore;
+
+/**
+ * Applies backpressure to writes when too much of the transaction log has been used since the last snapshot.
+ * Between the low and high water marks writes may be slowed down proportionally or low priority writes rejected.
+ * Above the high water mark writes wait for a snapshot to free up space, up to a timeout.
+ */
+class AdmissionController {
+
+    /** Supplies the current write pressure and requests snapshots. */
+    interface Store {
+        double getWritePressure();
+        void snapshotAsap();
+    }
+
+    private static final long POLL_MS = 100;
+
+    private final KeyValueStore.Backpressure policy;
+    private final double lowWaterMark;
+    private final double highWaterMark;
+    private final long timeoutMs;
+    private final long maxDelayMs;
+    private final Clock clock;
+
+    AdmissionController(KeyValueStore.Backpressure policy, double lowWaterMark, double highWaterMark,
+                        long timeoutMs, long maxDelayMs) {
+        this(policy, lowWaterMark, highWaterMark, timeoutMs, maxDelayMs, Clock.SYSTEM);
+    }
+
+    AdmissionController(KeyValueStore.Backpressure policy, double lowWaterMark, double highWaterMark,
+                        long timeoutMs, long maxDelayMs, Clock clock) {
+        this.policy = policy;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.timeoutMs = timeoutMs;
+        this.maxDelayMs = maxDelayMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Wait until a write may proceed. Throws {@link StoreOverloadedException} if the write is rejected or
+     * times out.
+     */
+    public void admit(Store store, boolean lowPriority) {
+        if (policy == KeyValueStore.Backpressure.NONE) return;
+        double p = store.getWritePressure();
+        if (p < lowWaterMark) return;
+
+        if (p < highWaterMark) {
+            if (policy == KeyValueStore.Backpressure.SHED && lowPriority) {
+                throw new StoreOverloadedException("Low priority write rejected, write pressure is " + p);
+            }
+            if (policy == KeyValueStore.Backpressure.SLOW) {
+                long ms = Math.round(maxDelayMs * (p - lowWaterMark) / (highWaterMark - lowWaterMark));
+                if (ms > 0) sleep(ms);
+            }
+            return;
+        }
+
+        if (policy == KeyValueStore.Backpressure.SHED && lowPriority) {
+            throw new StoreOverloadedException("Low priority write rejected, write pressure is " + p);
+        }
+        long deadline = clock.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            while ((p = store.getWritePressure()) >= highWaterMark) {
+                // a snapshot might already be in progress in which case this request is ignored so keep asking
+                store.snapshotAsap();
+                long ms = deadline - clock.currentTimeMillis();
+                if (ms <= 0) {
+                    throw new StoreOverloadedException("Timed out waiting for snapshot, write pressure is " + p);
+                }
+                try {
+                    wait(Math.min(ms, POLL_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StoreOverloadedException("Interrupted waiting for snapshot", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake up writers waiting for space in the transaction log.
+     */
+    public synchronized void onSnapshotSaved() {
+        notifyAll();
+    }
+
+    private void sleep(long ms) {
+        try {
+            clock.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreOverloadedException("Interrupted while delaying write", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package io.qdb.kvstore;
+
+/**
+ * Source of time for classes that measure rates so they can be tested without waiting.
+ */
+interface Clock {
+
+    long currentTimeMillis();
+
+    long nanoTime();
+
+    void sleep(long ms) throws InterruptedException;
+
+    Clock SYSTEM = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        public void sleep(long ms) throws InterruptedException {
+            Thread.sleep(ms);
+        }
+    };
+}
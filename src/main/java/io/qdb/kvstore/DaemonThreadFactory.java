@@ -0,0 +1,22 @@
+package io.qdb.kvstore;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates numbered daemon threads so pools used by the store don't keep the JVM alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private int count;
+
+    public DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + (++count));
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -1,7 +1,9 @@
 package io.qdb.kvstore;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileLock;
 
 /**
  * Static utility methods to create directories and so on.
@@ -24,4 +26,27 @@ class DirUtil {
         return dir.getAbsoluteFile();
     }
 
+    /**
+     * Ensure that dir exists and is a directory without creating or writing to anything.
+     */
+    public static File checkDirectory(File dir) throws IOException {
+        if (!dir.isDirectory()) throw new IOException("Not a directory [" + dir.getAbsolutePath() + "]");
+        return dir.getAbsoluteFile();
+    }
+
+    /**
+     * Take an exclusive lock on dir/lock so multiple JVMs won't use the same directory. Release the lock and
+     * close its channel when done.
+     */
+    public static FileLock lockDirectory(File dir) throws IOException {
+        FileOutputStream lockFile = new FileOutputStream(new File(dir, "lock"));
+        lockFile.write(0);
+        FileLock lock = lockFile.getChannel().tryLock();
+        if (lock == null) {
+            lockFile.close();
+            throw new DirLockedException(dir + " is in use");
+        }
+        return lock;
+    }
+
 }
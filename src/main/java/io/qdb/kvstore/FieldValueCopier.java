@@ -0,0 +1,241 @@
+package io.qdb.kvstore;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.URI;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Makes deep copies of objects field by field. The fields of each class are looked up once and cached. Classes
+ * must have a no-arg constructor (it does not have to be public). Transient fields are not copied. Immutable
+ * types (Strings, boxed primitives, enums, common JDK value types like UUID, BigDecimal and the java.time classes
+ * and any registered classes) are not copied. Dates, Calendars and TimeZones are cloned. EnumSets and EnumMaps
+ * are copied as the same type. Collections and maps with a no-arg constructor (public for JDK classes) are copied
+ * as the same type, others are copied as ArrayList, LinkedHashSet, TreeMap or LinkedHashMap. Other JDK classes
+ * are not copied field by field (their internals are off limits on newer JVMs) so register them as immutable or
+ * use a different {@link KeyValueStore.ValueCopier}. Shared references and cycles within a value are preserved.
+ * Failures are reported as {@link KeyValueStoreException}s.
+ */
+public class FieldValueCopier<V> implements KeyValueStore.ValueCopier<V> {
+
+    private static final String[] JAVA_TIME_CLASSES = new String[]{"Instant", "LocalDate", "LocalTime",
+            "LocalDateTime", "ZonedDateTime", "OffsetDateTime", "OffsetTime", "Duration", "Period", "Year",
+            "YearMonth", "MonthDay", "ZoneOffset", "ZoneRegion"};
+
+    private final Set<Class<?>> immutable = new HashSet<Class<?>>(Arrays.<Class<?>>asList(String.class, Boolean.class,
+            Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigInteger.class, BigDecimal.class, Class.class, UUID.class, Locale.class, Currency.class, URI.class,
+            URL.class, File.class, Pattern.class, Inet4Address.class, Inet6Address.class));
+
+    private final ConcurrentMap<Class<?>, ClassCopier> copiers = new ConcurrentHashMap<Class<?>, ClassCopier>();
+
+    public FieldValueCopier() {
+        // the java.time classes are only available on Java 8 and newer
+        for (String name : JAVA_TIME_CLASSES) {
+            try {
+                immutable.add(Class.forName("java.time." + name));
+            } catch (ClassNotFoundException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Instances of immutableTypes are not copied.
+     */
+    public FieldValueCopier(Collection<Class<?>> immutableTypes) {
+        this();
+        immutable.addAll(immutableTypes);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V copy(V value) {
+        return (V)copyObject(value, new IdentityHashMap<Object, Object>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object copyObject(Object o, IdentityHashMap<Object, Object> seen) {
+        if (o == null) return null;
+        Class<?> cls = o.getClass();
+        if (immutable.contains(cls) || cls.isEnum() || o instanceof Enum) return o;
+
+        Object ans = seen.get(o);
+        if (ans != null) return ans;
+
+        if (cls.isArray()) {
+            int n = Array.getLength(o);
+            Class<?> ct = cls.getComponentType();
+            ans = Array.newInstance(ct, n);
+            seen.put(o, ans);
+            if (ct.isPrimitive()) {
+                System.arraycopy(o, 0, ans, 0, n);
+            } else {
+                Object[] src = (Object[])o, dst = (Object[])ans;
+                for (int i = 0; i < n; i++) dst[i] = copyObject(src[i], seen);
+            }
+        } else if (o instanceof Date) {
+            ans = ((Date)o).clone();
+            seen.put(o, ans);
+        } else if (o instanceof Calendar) {
+            ans = ((Calendar)o).clone();
+            seen.put(o, ans);
+        } else if (o instanceof TimeZone) {
+            ans = ((TimeZone)o).clone();
+            seen.put(o, ans);
+        } else if (o instanceof EnumSet) {
+            // enums are not copied so a shallow copy will do
+            ans = ((EnumSet<?>)o).clone();
+            seen.put(o, ans);
+        } else if (o instanceof EnumMap) {
+            EnumMap<?, Object> m = ((EnumMap<?, Object>)o).clone();
+            seen.put(o, m);
+            for (Map.Entry<?, Object> e : m.entrySet()) e.setValue(copyObject(e.getValue(), seen));
+            ans = m;
+        } else if (o instanceof Collection) {
+            Collection<Object> c = (Collection<Object>)newContainer(o);
+            seen.put(o, c);
+            for (Object e : (Collection<?>)o) c.add(copyObject(e, seen));
+            ans = c;
+        } else if (o instanceof Map) {
+            Map<Object, Object> m = (Map<Object, Object>)newContainer(o);
+            seen.put(o, m);
+            for (Map.Entry<?, ?> e : ((Map<?, ?>)o).entrySet()) {
+                m.put(copyObject(e.getKey(), seen), copyObject(e.getValue(), seen));
+            }
+            ans = m;
+        } else {
+            ClassCopier cc = getClassCopier(cls);
+            ans = cc.newInstance();
+            seen.put(o, ans);
+            cc.copyFields(o, ans, seen);
+        }
+        return ans;
+    }
+
+    /**
+     * Create an empty collection or map to hold a copy of the contents of o.
+     */
+    @SuppressWarnings("unchecked")
+    private Object newContainer(Object o) {
+        if (o instanceof SortedMap) {
+            return new TreeMap<Object, Object>((Comparator<Object>)((SortedMap<?, ?>)o).comparator());
+        }
+        if (o instanceof SortedSet) return new TreeSet<Object>((Comparator<Object>)((SortedSet<?>)o).comparator());
+        ClassCopier cc = getClassCopier(o.getClass());
+        if (cc.constructor != null) return cc.newInstance();
+        if (o instanceof List) return new ArrayList<Object>(((List<?>)o).size());
+        if (o instanceof Set) return new LinkedHashSet<Object>();
+        if (o instanceof Map) return new LinkedHashMap<Object, Object>();
+        return new ArrayList<Object>();
+    }
+
+    private ClassCopier getClassCopier(Class<?> cls) {
+        ClassCopier cc = copiers.get(cls);
+        if (cc == null) copiers.put(cls, cc = new ClassCopier(cls));
+        return cc;
+    }
+
+    private static boolean isJdkClass(Class<?> cls) {
+        String name = cls.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") ||
+                name.startsWith("com.sun.") || name.startsWith("jdk.");
+    }
+
+    /**
+     * Cached constructor and fields for a class.
+     */
+    private class ClassCopier {
+
+        final Class<?> cls;
+        final Constructor<?> constructor;
+        final Field[] primitives;
+        final Field[] objects;
+
+        ClassCopier(Class<?> cls) {
+            this.cls = cls;
+            boolean container = Collection.class.isAssignableFrom(cls) || Map.class.isAssignableFrom(cls);
+            boolean jdk = isJdkClass(cls);
+            if (jdk && !container) {
+                throw new KeyValueStoreException("Unable to copy " + cls.getName() + ", register it as immutable " +
+                        "or use a different ValueCopier");
+            }
+            Constructor<?> c;
+            try {
+                if (jdk) {
+                    // only use public constructors of public JDK collections, others are copied as a standard type
+                    c = Modifier.isPublic(cls.getModifiers()) ? cls.getConstructor() : null;
+                } else {
+                    c = cls.getDeclaredConstructor();
+                    c.setAccessible(true);
+                }
+            } catch (NoSuchMethodException e) {
+                c = null;
+            } catch (RuntimeException e) {
+                // SecurityException or InaccessibleObjectException on Java 9+
+                throw new KeyValueStoreException("Unable to access constructor for " + cls.getName() + ": " + e, e);
+            }
+            constructor = c;
+
+            List<Field> p = new ArrayList<Field>();
+            List<Field> o = new ArrayList<Field>();
+            if (!container) {
+                for (Class<?> k = cls; k != Object.class && k != null; k = k.getSuperclass()) {
+                    for (Field f : k.getDeclaredFields()) {
+                        int mod = f.getModifiers();
+                        if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) continue;
+                        try {
+                            f.setAccessible(true);
+                        } catch (RuntimeException e) {
+                            throw new KeyValueStoreException("Unable to access " + f + ": " + e, e);
+                        }
+                        (f.getType().isPrimitive() ? p : o).add(f);
+                    }
+                }
+            }
+            primitives = p.toArray(new Field[p.size()]);
+            objects = o.toArray(new Field[o.size()]);
+        }
+
+        Object newInstance() {
+            if (constructor == null) {
+                throw new KeyValueStoreException("Unable to copy " + cls.getName() + ", it has no no-arg constructor");
+            }
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                throw new KeyValueStoreException("Unable to create " + cls.getName() + ": " + e, e);
+            }
+        }
+
+        void copyFields(Object src, Object dst, IdentityHashMap<Object, Object> seen) {
+            try {
+                for (Field f : primitives) {
+                    Class<?> t = f.getType();
+                    if (t == int.class) f.setInt(dst, f.getInt(src));
+                    else if (t == long.class) f.setLong(dst, f.getLong(src));
+                    else if (t == boolean.class) f.setBoolean(dst, f.getBoolean(src));
+                    else if (t == double.class) f.setDouble(dst, f.getDouble(src));
+                    else if (t == float.class) f.setFloat(dst, f.getFloat(src));
+                    else if (t == short.class) f.setShort(dst, f.getShort(src));
+                    else if (t == byte.class) f.setByte(dst, f.getByte(src));
+                    else f.setChar(dst, f.getChar(src));
+                }
+                for (Field f : objects) f.set(dst, copyObject(f.get(src), seen));
+            } catch (IllegalAccessException e) {
+                throw new KeyValueStoreException("Unable to copy " + cls.getName() + ": " + e, e);
+            } catch (IllegalArgumentException e) {
+                throw new KeyValueStoreException("Unable to copy " + cls.getName() + ": " + e, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.qdb.kvstore;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A map in a {@link KeyValueStore}. All methods might throw {@link KeyValueStoreException}.
+ */
+public interface KeyValueMap<K, V> extends ConcurrentMap<K, V> {
+
+    /**
+     * Create a query to filter and aggregate the entries in this map in parallel.
+     */
+    MapQuery<K, V> query();
+
+    /**
+     * Atomically replace the value for key with the result of the named update function (registered with
+     * {@link KeyValueStoreBuilder#updateFunction(String, io.qdb.kvstore.KeyValueStore.UpdateFunction)}) and return
+     * it. If the function returns null the key is removed. Only fn and arg are written to the transaction log.
+     */
+    V compute(K key, String fn, Object arg);
+
+    /**
+     * Get a view of this map whose writes are low priority. These are rejected with a
+     * {@link StoreOverloadedException} instead of being delayed when the store is using
+     * {@link KeyValueStore.Backpressure#SHED} and the transaction log is above the low water mark.
+     */
+    KeyValueMap<K, V> lowPriority();
+}
@@ -3,7 +3,6 @@ package io.qdb.kvstore;
 import java.io.*;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * Clustered in memory key/value store for objects. See README.md for more information. Create instances
@@ -15,12 +14,12 @@ public interface KeyValueStore<K, V> extends Closeable {
      * Get a map for storing objects. It is only actually created when the first object is stored.
      * All methods in the map might throw {@link KeyValueStoreException}.
      */
-    ConcurrentMap<K, V> getMap(String name);
+    KeyValueMap<K, V> getMap(String name);
 
     /**
      * Get a map for storing objects of a particular type. Note that the type restriction isn't enforced.
      */
-    <T extends V> ConcurrentMap<K, T> getMap(String name, Class<T> cls);
+    <T extends V> KeyValueMap<K, T> getMap(String name, Class<T> cls);
 
     /**
      * Save a snapshot. This is a NOP if we are already busy saving a snapshot or if no new transactions have been
@@ -38,6 +37,28 @@ public interface KeyValueStore<K, V> extends Closeable {
      */
     List<String> getMapNames();
 
+    /**
+     * Get the fraction of the transaction log used since the most recent snapshot (0.0 to 1.0). Writes fail when
+     * this reaches 1.0. Callers can use this to throttle themselves.
+     * @see KeyValueStoreBuilder#backpressure(io.qdb.kvstore.KeyValueStore.Backpressure)
+     */
+    double getWritePressure();
+
+    /**
+     * What to do with writes when the transaction log is filling up faster than snapshots can be saved.
+     * @see KeyValueStoreBuilder#backpressure(io.qdb.kvstore.KeyValueStore.Backpressure)
+     */
+    enum Backpressure {
+        /** Accept all writes until the tx log is full and appends fail. */
+        NONE,
+        /** Block writes above the high water mark until a snapshot frees up space or the timeout expires. */
+        BLOCK,
+        /** Delay writes proportionally between the low and high water marks and block above the high mark. */
+        SLOW,
+        /** Reject low priority writes above the low water mark and block other writes above the high mark. */
+        SHED
+    }
+
     /** Extracts version numbers from objects for optimistic locking. */
     interface VersionProvider<V> {
         /** Get the version of value or null if it does not have a version. */
@@ -46,6 +67,35 @@ public interface KeyValueStore<K, V> extends Closeable {
         public void incVersion(V value);
     }
 
+    /**
+     * Computes a new value for a key from its existing value. These are registered by name using
+     * {@link KeyValueStoreBuilder#updateFunction(String, io.qdb.kvstore.KeyValueStore.UpdateFunction)} and
+     * invoked using {@link KeyValueMap#compute(Object, String, Object)}. Only the function name and argument are
+     * written to the transaction log and the function is run again when the log is replayed so it must be
+     * deterministic and must not have side effects.
+     */
+    interface UpdateFunction<K, V> {
+        /**
+         * Return the new value for key or null to remove it. Existing is null if there is no value for key. If the
+         * map is copied on read or on write then existing is a copy and may be modified and returned. Otherwise
+         * existing is the object held by the store and must not be modified: a new object must be returned. The
+         * argument has always been through the serializer so the function sees the same types when it is first run
+         * and when the transaction log is replayed (e.g. Long instead of Integer).
+         */
+        public V apply(K key, V existing, Object arg);
+    }
+
+    /**
+     * Makes copies of values so objects in the store cannot be changed by code holding references to them.
+     * Implementations must be thread safe.
+     * @see FieldValueCopier
+     * @see SerializingValueCopier
+     */
+    interface ValueCopier<V> {
+        /** Return a copy of value which must not be null. */
+        public V copy(V value);
+    }
+
     /**
      * Receives notification of changes to the store. Extend {@link ListenerAdapter} instead of implementing this
      * interface directly so your code won't break if new methods are addeded.
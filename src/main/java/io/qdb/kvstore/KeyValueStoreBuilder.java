@@ -2,8 +2,7 @@ package io.qdb.kvstore;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Helps create a DataStore instance. This makes it possible for the data store to receive all its configuration
@@ -19,22 +18,104 @@ public class KeyValueStoreBuilder<K, V> {
     private int maxObjectSize = 100000;
     private int snapshotCount = 3;
     private int snapshotIntervalSecs = 60;
+    private File snapshotDir;
+    private int snapshotMaxReplayM;
+    private int snapshotMaxMBPerSec;
+    private int snapshotTargetWriteLatencyMs = 10;
     private Map<String, Class> aliases = new HashMap<String, Class>();
+    private KeyValueStore.ValueCopier<V> valueCopier;
+    private boolean copyOnRead;
+    private boolean copyOnWrite;
+    private Map<String, Boolean> copyOnReadMaps = new HashMap<String, Boolean>();
+    private Map<String, Boolean> copyOnWriteMaps = new HashMap<String, Boolean>();
+    private Set<Class<?>> immutableTypes = new HashSet<Class<?>>();
+    private int partitions;
+    private File[] partitionDirs;
+    private int queryThreads = Runtime.getRuntime().availableProcessors();
+    private Map<String, KeyValueStore.UpdateFunction<K, V>> updateFunctions =
+            new HashMap<String, KeyValueStore.UpdateFunction<K, V>>();
+    private KeyValueStore.Backpressure backpressure = KeyValueStore.Backpressure.NONE;
+    private double txLogLowWaterMark = 0.5;
+    private double txLogHighWaterMark = 0.75;
+    private int backpressureTimeoutMs = 10000;
+    private int maxWriteDelayMs = 100;
+    private boolean readOnly;
+    private int tailIntervalMs = 100;
+    private int compressionLevel;
+    private boolean salvage;
 
     public KeyValueStoreBuilder() { }
 
     public KeyValueStore<K, V> create() throws IOException {
         if (dir == null) throw new IllegalStateException("dir is required");
-        if (serializer == null) serializer = new GensonSerializer(aliases);
         if (versionProvider == null) versionProvider = new NopVersionProvider<V>();
-        return new KeyValueStoreImpl<K, V>(serializer, versionProvider, listener, dir,
-                txLogSizeM, maxObjectSize, snapshotCount, snapshotIntervalSecs);
+        if (txLogLowWaterMark > txLogHighWaterMark) {
+            throw new IllegalStateException("txLogLowWaterMark " + txLogLowWaterMark + " is above txLogHighWaterMark " +
+                    txLogHighWaterMark);
+        }
+        if (partitions > 1 || partitionDirs != null || PartitionedKeyValueStore.isPartitioned(dir)) {
+            return new PartitionedKeyValueStore<K, V>(this, dir, partitions, partitionDirs, snapshotDir, listener,
+                    queryThreads, readOnly);
+        }
+        return createPartition(dir, snapshotDir, listener);
+    }
+
+    /**
+     * Open the store read only without changing the readOnly setting of this builder.
+     */
+    KeyValueStore<K, V> openReadOnly() throws IOException {
+        boolean was = readOnly;
+        readOnly = true;
+        try {
+            return create();
+        } finally {
+            readOnly = was;
+        }
+    }
+
+    /**
+     * Create a non-partitioned store (or one partition of a partitioned store) in dir.
+     */
+    KeyValueStoreImpl<K, V> createPartition(File dir, File snapshotDir, KeyValueStore.Listener<K, V> listener)
+            throws IOException {
+        KeyValueStore.ValueCopier<V> copier = null;
+        if (copyOnRead || copyOnWrite || copyOnReadMaps.containsValue(true) || copyOnWriteMaps.containsValue(true)) {
+            if (valueCopier == null) copier = new FieldValueCopier<V>(immutableTypes);
+            else if (immutableTypes.isEmpty()) copier = valueCopier;
+            else copier = new SkipImmutableCopier<V>(valueCopier, immutableTypes);
+        }
+        return new KeyValueStoreImpl<K, V>(getSerializer(), versionProvider, listener, dir,
+                txLogSizeM, maxObjectSize, snapshotCount, snapshotIntervalSecs,
+                copier, copyOnRead, copyOnWrite, new HashMap<String, Boolean>(copyOnReadMaps),
+                new HashMap<String, Boolean>(copyOnWriteMaps), snapshotDir,
+                new SnapshotScheduler(snapshotMaxReplayM, snapshotMaxMBPerSec, snapshotTargetWriteLatencyMs),
+                queryThreads, new HashMap<String, KeyValueStore.UpdateFunction<K, V>>(updateFunctions),
+                new AdmissionController(backpressure, txLogLowWaterMark, txLogHighWaterMark, backpressureTimeoutMs,
+                        maxWriteDelayMs),
+                readOnly, tailIntervalMs, createCodec(dir), salvage);
+    }
+
+    TxLogCodec createCodec(File dir) {
+        return new TxLogCodec(new File(dir, "dict"), compressionLevel, aliases.keySet());
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    File getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    synchronized KeyValueStoreSerializer getSerializer() {
+        if (serializer == null) serializer = new GensonSerializer(aliases);
+        return serializer;
     }
 
     /**
      * Directory for snapshots and the transaction log. Created if it does not exist. Must be writable.
      */
-    public KeyValueStoreBuilder dir(File dir) {
+    public KeyValueStoreBuilder<K, V> dir(File dir) {
         this.dir = dir;
         return this;
     }
@@ -42,7 +123,7 @@ public class KeyValueStoreBuilder<K, V> {
     /**
      * Directory for snapshots and the transaction log. Created if it does not exist. Must be writable.
      */
-    public KeyValueStoreBuilder dir(String dir) {
+    public KeyValueStoreBuilder<K, V> dir(String dir) {
         this.dir = new File(dir);
         return this;
     }
@@ -52,7 +133,7 @@ public class KeyValueStoreBuilder<K, V> {
      * data as JSON.
      * @see #alias(String, Class)
      */
-    public KeyValueStoreBuilder serializer(KeyValueStoreSerializer serializer) {
+    public KeyValueStoreBuilder<K, V> serializer(KeyValueStoreSerializer serializer) {
         this.serializer = serializer;
         return this;
     }
@@ -63,7 +144,7 @@ public class KeyValueStoreBuilder<K, V> {
      * instances as "@class": "foo" instead of "@class": "com.acme.Foo". Note that if you supply your own serializer
      * aliases are ignored.
      */
-    public KeyValueStoreBuilder alias(String alias, Class<?> forClass) {
+    public KeyValueStoreBuilder<K, V> alias(String alias, Class<?> forClass) {
         aliases.put(alias, forClass);
         return this;
     }
@@ -72,7 +153,7 @@ public class KeyValueStoreBuilder<K, V> {
      * If you want to use optimistic locking then you must supply a version provider which is responsible for
      * getting and incrementing version numbers.
      */
-    public KeyValueStoreBuilder versionProvider(KeyValueStore.VersionProvider<V> versionProvider) {
+    public KeyValueStoreBuilder<K, V> versionProvider(KeyValueStore.VersionProvider<V> versionProvider) {
         this.versionProvider = versionProvider;
         return this;
     }
@@ -80,7 +161,7 @@ public class KeyValueStoreBuilder<K, V> {
     /**
      * If you want to be notified when the store is changed then supply a listener.
      */
-    public KeyValueStoreBuilder listener(KeyValueStore.Listener<K, V> listener) {
+    public KeyValueStoreBuilder<K, V> listener(KeyValueStore.Listener<K, V> listener) {
         this.listener = listener;
         return this;
     }
@@ -88,7 +169,7 @@ public class KeyValueStoreBuilder<K, V> {
     /**
      * Set the max size in M of the transaction log. Default is 10M.
      */
-    public KeyValueStoreBuilder txLogSizeM(int txLogSizeM) {
+    public KeyValueStoreBuilder<K, V> txLogSizeM(int txLogSizeM) {
         this.txLogSizeM = txLogSizeM;
         return this;
     }
@@ -96,7 +177,7 @@ public class KeyValueStoreBuilder<K, V> {
     /**
      * Set the maximum size in bytes of stored objects. Default is 100000.
      */
-    public KeyValueStoreBuilder maxObjectSize(int maxObjectSize) {
+    public KeyValueStoreBuilder<K, V> maxObjectSize(int maxObjectSize) {
         this.maxObjectSize = maxObjectSize;
         return this;
     }
@@ -104,7 +185,7 @@ public class KeyValueStoreBuilder<K, V> {
     /**
      * How many snapshot files should be kept? Default is 3.
      */
-    public KeyValueStoreBuilder snapshotCount(int snapshotCount) {
+    public KeyValueStoreBuilder<K, V> snapshotCount(int snapshotCount) {
         this.snapshotCount = snapshotCount;
         return this;
     }
@@ -113,11 +194,257 @@ public class KeyValueStoreBuilder<K, V> {
      * How often should automatic snapshots be taken? Default is every 60 seconds if changes have been made to the
      * store. Snapshots are taken as quickly as possible if the transaction log is more than half full.
      */
-    public KeyValueStoreBuilder snapshotIntervalSecs(int snapshotIntervalSecs) {
+    public KeyValueStoreBuilder<K, V> snapshotIntervalSecs(int snapshotIntervalSecs) {
         this.snapshotIntervalSecs = snapshotIntervalSecs;
         return this;
     }
 
+    /**
+     * Directory for snapshots. Use this to put snapshots on a different device to the transaction log. Default is
+     * the same directory as the transaction log.
+     */
+    public KeyValueStoreBuilder<K, V> snapshotDir(File snapshotDir) {
+        this.snapshotDir = snapshotDir;
+        return this;
+    }
+
+    /**
+     * Take a snapshot when more than this many M of transaction log would need to be replayed on startup.
+     * Default is half of txLogSizeM. Snapshots are also taken early if the transaction log is filling up faster
+     * than the previous snapshot took to write.
+     */
+    public KeyValueStoreBuilder<K, V> snapshotMaxReplayM(int snapshotMaxReplayM) {
+        this.snapshotMaxReplayM = snapshotMaxReplayM;
+        return this;
+    }
+
+    /**
+     * Limit the rate at which snapshots are written so they don't saturate the disk. The limit is reduced
+     * (to a minimum of 1/10th) while transaction log writes are slower than snapshotTargetWriteLatencyMs and is
+     * ignored when the transaction log is close to full. Default is 0 (no limit).
+     */
+    public KeyValueStoreBuilder<K, V> snapshotMaxMBPerSec(int snapshotMaxMBPerSec) {
+        this.snapshotMaxMBPerSec = snapshotMaxMBPerSec;
+        return this;
+    }
+
+    /**
+     * Snapshots are written more slowly if transaction log writes take longer than this on average.
+     * Default is 10 ms. Only used if snapshotMaxMBPerSec is set.
+     */
+    public KeyValueStoreBuilder<K, V> snapshotTargetWriteLatencyMs(int snapshotTargetWriteLatencyMs) {
+        this.snapshotTargetWriteLatencyMs = snapshotTargetWriteLatencyMs;
+        return this;
+    }
+
+    /**
+     * Spread the objects in the store across this many partitions, each with its own transaction log and
+     * snapshots in a sub directory of dir. Writes to different partitions can proceed in parallel. Objects are
+     * assigned to partitions by hashing the map name and key so keys must have stable hashCode implementations.
+     * The number of partitions of an existing store can only be changed using
+     * {@link PartitionedKeyValueStore#repartition(KeyValueStoreBuilder, java.io.File...)}.
+     */
+    public KeyValueStoreBuilder<K, V> partitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * Use one partition per directory (e.g. on different disks). dir is still required and is used to record
+     * the partition directories.
+     * @see #partitions(int)
+     */
+    public KeyValueStoreBuilder<K, V> partitionDirs(File... partitionDirs) {
+        this.partitionDirs = partitionDirs;
+        return this;
+    }
+
+    /**
+     * Register an update function for use with {@link KeyValueMap#compute(Object, String, Object)}. Functions
+     * must be registered before the store is created as they are needed to replay the transaction log. Don't
+     * change what a function does once it has been used as it might be replayed.
+     */
+    public KeyValueStoreBuilder<K, V> updateFunction(String name, KeyValueStore.UpdateFunction<K, V> fn) {
+        updateFunctions.put(name, fn);
+        return this;
+    }
+
+    /**
+     * How many threads should be used to run queries? Default is the number of processors.
+     * @see KeyValueMap#query()
+     */
+    public KeyValueStoreBuilder<K, V> queryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+        return this;
+    }
+
+    /**
+     * What to do with writes when the transaction log is filling up faster than snapshots can be saved. Default
+     * is {@link KeyValueStore.Backpressure#NONE} (writes fail when the log is full).
+     * @see KeyValueStore#getWritePressure()
+     */
+    public KeyValueStoreBuilder<K, V> backpressure(KeyValueStore.Backpressure backpressure) {
+        this.backpressure = backpressure;
+        return this;
+    }
+
+    /**
+     * Start slowing down or shedding writes when this fraction of the transaction log has been used since the most
+     * recent snapshot. Default is 0.5.
+     */
+    public KeyValueStoreBuilder<K, V> txLogLowWaterMark(double txLogLowWaterMark) {
+        this.txLogLowWaterMark = txLogLowWaterMark;
+        return this;
+    }
+
+    /**
+     * Block writes and snapshot immediately when this fraction of the transaction log has been used since the
+     * most recent snapshot. Default is 0.75.
+     */
+    public KeyValueStoreBuilder<K, V> txLogHighWaterMark(double txLogHighWaterMark) {
+        this.txLogHighWaterMark = txLogHighWaterMark;
+        return this;
+    }
+
+    /**
+     * How long may a write block above the high water mark before failing with {@link StoreOverloadedException}?
+     * Default is 10000 ms.
+     */
+    public KeyValueStoreBuilder<K, V> backpressureTimeoutMs(int backpressureTimeoutMs) {
+        this.backpressureTimeoutMs = backpressureTimeoutMs;
+        return this;
+    }
+
+    /**
+     * The longest delay added to a write by {@link KeyValueStore.Backpressure#SLOW} just below the high water
+     * mark. Default is 100 ms.
+     */
+    public KeyValueStoreBuilder<K, V> maxWriteDelayMs(int maxWriteDelayMs) {
+        this.maxWriteDelayMs = maxWriteDelayMs;
+        return this;
+    }
+
+    /**
+     * Open an existing store without locking it and follow the changes made by the process that has it open for
+     * writing. The newest snapshot is loaded and the transaction log is polled for new transactions (see
+     * tailIntervalMs) which are applied and fire events as usual. If the log rolls over before transactions have
+     * been read, or the writer crashes and truncates the log behind us, the newest snapshot is loaded again and
+     * replaces all the maps at once. No events are fired for changes picked up this way. All writes throw
+     * {@link KeyValueStoreException} and saveSnapshot does nothing. The store must be on the same machine (or a file
+     * system with the same semantics). Default is false.
+     */
+    public KeyValueStoreBuilder<K, V> readOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    /**
+     * How often does a read only store check the transaction log for new transactions? Default is 100 ms.
+     * @see #readOnly(boolean)
+     */
+    public KeyValueStoreBuilder<K, V> tailIntervalMs(int tailIntervalMs) {
+        this.tailIntervalMs = tailIntervalMs;
+        return this;
+    }
+
+    /**
+     * Compress snapshots and tx log records using this Deflater level (1 fastest to 9 smallest). Snapshots are
+     * compressed chunk by chunk and tx log records one at a time, both using a dictionary built from the class aliases
+     * and map names. This uses more CPU but makes snapshots smaller and lets the tx log hold more transactions
+     * before a snapshot is needed. Stores can be opened with a different level (including 0) to the one used to
+     * write them. Default is 0 (no compression).
+     */
+    public KeyValueStoreBuilder<K, V> compressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Invalid compressionLevel " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * If the store cannot be opened without losing data (damaged snapshots, unreadable tx log records or a snapshot
+     * older than the tx log) then open it anyway using whatever loses the least. Snapshots are read up to the last
+     * good chunk and only tx log records that fail their checksum are skipped. Records and chunks that pass their
+     * checksums but cannot be deserialized (e.g. a class alias is missing) always cause an IOException as that is
+     * a configuration problem and not damage. What was skipped is logged and available from
+     * {@link KeyValueStoreImpl#getRecoveryReport()} and a new snapshot is taken straight away if anything was
+     * recovered. If this is false the store throws an IOException instead. Default is false.
+     */
+    public KeyValueStoreBuilder<K, V> salvage(boolean salvage) {
+        this.salvage = salvage;
+        return this;
+    }
+
+    /**
+     * Copy values when they are put into maps so changes made to the original object after the put do not affect
+     * the store. Default is false. Note that version numbers are still bumped on the original object.
+     * @see #valueCopier(io.qdb.kvstore.KeyValueStore.ValueCopier)
+     */
+    public KeyValueStoreBuilder<K, V> copyOnWrite(boolean copyOnWrite) {
+        this.copyOnWrite = copyOnWrite;
+        return this;
+    }
+
+    /**
+     * Copy values returned by map get methods and the values and entrySet views so callers can safely modify
+     * them. Default is false.
+     * @see #valueCopier(io.qdb.kvstore.KeyValueStore.ValueCopier)
+     */
+    public KeyValueStoreBuilder<K, V> copyOnRead(boolean copyOnRead) {
+        this.copyOnRead = copyOnRead;
+        return this;
+    }
+
+    /**
+     * Override copyOnWrite for one map. Use this to turn copying on only for maps whose values are modified by
+     * callers or off for maps with large values that are never modified.
+     */
+    public KeyValueStoreBuilder<K, V> copyOnWrite(String map, boolean copyOnWrite) {
+        copyOnWriteMaps.put(map, copyOnWrite);
+        return this;
+    }
+
+    /**
+     * Override copyOnRead for one map.
+     * @see #copyOnWrite(String, boolean)
+     */
+    public KeyValueStoreBuilder<K, V> copyOnRead(String map, boolean copyOnRead) {
+        copyOnReadMaps.put(map, copyOnRead);
+        return this;
+    }
+
+    /**
+     * Set the copier used if copyOnRead or copyOnWrite is on. The default is a {@link FieldValueCopier}.
+     */
+    public KeyValueStoreBuilder<K, V> valueCopier(KeyValueStore.ValueCopier<V> valueCopier) {
+        this.valueCopier = valueCopier;
+        return this;
+    }
+
+    /**
+     * Instances of cls are immutable and never need to be copied.
+     */
+    public KeyValueStoreBuilder<K, V> immutable(Class<?> cls) {
+        immutableTypes.add(cls);
+        return this;
+    }
+
+    private static class SkipImmutableCopier<V> implements KeyValueStore.ValueCopier<V> {
+
+        private final KeyValueStore.ValueCopier<V> copier;
+        private final Set<Class<?>> immutableTypes;
+
+        SkipImmutableCopier(KeyValueStore.ValueCopier<V> copier, Set<Class<?>> immutableTypes) {
+            this.copier = copier;
+            this.immutableTypes = new HashSet<Class<?>>(immutableTypes);
+        }
+
+        public V copy(V value) {
+            return immutableTypes.contains(value.getClass()) ? value : copier.copy(value);
+        }
+    }
+
     private static class NopVersionProvider<V> implements KeyValueStore.VersionProvider<V> {
         public Object getVersion(V value) { return null; }
         public void incVersion(V value) { }
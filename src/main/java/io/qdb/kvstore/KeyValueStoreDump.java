@@ -0,0 +1,637 @@
+package io.qdb.kvstore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streams the contents of a store to newline delimited records or the snapshot format and imports them back into
+ * a new store directory. Records are serialized and de-serialized in parallel in chunks with a bounded number of
+ * chunks in memory at any one time. Run the main method to export or import a store directory offline.
+ * <p>
+ * Exporting a store directory ({@link #exportDir(java.io.File, java.io.OutputStream, Format)}) and importing do
+ * not load the whole store into memory. The newest snapshot is read one chunk at a time and only the keys changed
+ * by the tail of the tx log (the transactions after the snapshot) are held in memory.
+ */
+public class KeyValueStoreDump {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyValueStoreDump.class);
+
+    public enum Format {
+        /** One PUT {@link StoreTx} per line. */
+        LINES,
+        /** Same format as the snapshot files written by the store. */
+        SNAPSHOT
+    }
+
+    private final KeyValueStoreSerializer serializer;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 1000;
+    private int maxChunksInFlight;
+    private KeyValueStore.VersionProvider<Object> versionProvider;
+    private final Map<String, KeyValueStore.UpdateFunction<Object, Object>> updateFunctions =
+            new HashMap<String, KeyValueStore.UpdateFunction<Object, Object>>();
+
+    /**
+     * The serializer must be compatible with the one used by the store (e.g. same aliases). Note that the
+     * {@link Format#LINES} format requires a serializer that does not write newlines when not pretty printing.
+     */
+    public KeyValueStoreDump(KeyValueStoreSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * How many threads should be used to serialize and de-serialize records? Default is the number of processors.
+     */
+    public KeyValueStoreDump threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * How many records should be processed by a thread at a time? Default is 1000.
+     */
+    public KeyValueStoreDump chunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * How many chunks can be waiting to be processed or written? This bounds the memory used. Default is twice the
+     * number of threads.
+     */
+    public KeyValueStoreDump maxChunksInFlight(int maxChunksInFlight) {
+        this.maxChunksInFlight = maxChunksInFlight;
+        return this;
+    }
+
+    /**
+     * The version provider used by the store. This is needed to apply the tx log when exporting a store directory.
+     */
+    @SuppressWarnings("unchecked")
+    public KeyValueStoreDump versionProvider(KeyValueStore.VersionProvider<?> versionProvider) {
+        this.versionProvider = (KeyValueStore.VersionProvider<Object>)versionProvider;
+        return this;
+    }
+
+    /**
+     * Register an update function used by the store. Exporting a store directory fails if its tx log contains
+     * COMPUTE transactions for functions that have not been registered.
+     */
+    @SuppressWarnings("unchecked")
+    public KeyValueStoreDump updateFunction(String name, KeyValueStore.UpdateFunction<?, ?> fn) {
+        updateFunctions.put(name, (KeyValueStore.UpdateFunction<Object, Object>)fn);
+        return this;
+    }
+
+    /**
+     * Write the contents of store to out. If the store is being modified the output will include some but not
+     * necessarily all of the changes made during the export. Returns the number of objects exported.
+     */
+    public <K, V> long exportStore(KeyValueStore<K, V> store, OutputStream out, Format format) throws IOException {
+        Output output = createOutput(out, format);
+        try {
+            for (String name : store.getMapNames()) {
+                Map<K, V> m = store.getMap(name);
+                if (m.isEmpty()) output.putMap(name);
+                for (Map.Entry<K, V> e : m.entrySet()) output.put(name, e.getKey(), e.getValue());
+            }
+            return output.finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Write the contents of the store in dir to out without opening the store. The newest snapshot is streamed one
+     * chunk at a time with the changes from the tx log applied so the store does not have to fit in memory. This
+     * does not modify any files or take the directory lock so the store may be in use. The export includes the
+     * transactions written up to the time the tx log was read. Returns the number of objects exported.
+     */
+    public long exportDir(File dir, OutputStream out, Format format) throws IOException {
+        return exportDir(dir, null, out, format);
+    }
+
+    /**
+     * Export the store in dir as for {@link #exportDir(java.io.File, java.io.OutputStream, Format)}. If the store
+     * keeps its snapshots in a separate directory then snapshotDir must be the same as the one used by the
+     * builder (null if none). Partitioned stores are exported one partition at a time.
+     */
+    public long exportDir(File dir, File snapshotDir, OutputStream out, Format format) throws IOException {
+        dir = DirUtil.checkDirectory(dir);
+        File[] dirs, snapshotDirs;
+        if (PartitionedKeyValueStore.isPartitioned(dir)) {
+            dirs = PartitionedKeyValueStore.readPartitionsFile(new File(dir, "partitions"));
+            snapshotDirs = new File[dirs.length];
+            for (int i = 0; i < dirs.length; i++) {
+                snapshotDirs[i] = snapshotDir == null ? dirs[i] : new File(snapshotDir, "p" + i);
+            }
+        } else {
+            dirs = new File[]{dir};
+            snapshotDirs = new File[]{snapshotDir == null ? dir : snapshotDir};
+        }
+        Output output = createOutput(out, format);
+        try {
+            for (int i = 0; i < dirs.length; i++) exportPartition(dirs[i], snapshotDirs[i], output);
+            return output.finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    private void exportPartition(File dir, File snapshotDir, final Output output) throws IOException {
+        dir = DirUtil.checkDirectory(dir);
+        File[] files = SnapshotFile.list(snapshotDir);
+        File snapshot = files.length > 0 ? files[files.length - 1] : null;
+        // keep the snapshot open so it can be read twice even if the store deletes it
+        FileInputStream in = snapshot == null ? null : new FileInputStream(snapshot);
+        try {
+            final Tail tail = readTail(dir, snapshot == null ? 0 : SnapshotFile.getId(snapshot));
+            if (in != null && !tail.txs.isEmpty()) {
+                SnapshotFile.read(serializer, new BufferedInputStream(in, 65536), tail);
+                in.getChannel().position(0);
+            }
+            tail.replay();
+            if (in != null) {
+                SnapshotFile.read(serializer, new BufferedInputStream(in, 65536),
+                        new SnapshotFile.ChunkHandler<Object, Object>() {
+                    public void onChunk(Map<String, Map<Object, Object>> chunk) throws IOException {
+                        for (Map.Entry<String, Map<Object, Object>> me : chunk.entrySet()) {
+                            String name = me.getKey();
+                            if (me.getValue().isEmpty()) output.putMap(name);
+                            Set<Object> touched = tail.touched.get(name);
+                            for (Map.Entry<Object, Object> e : me.getValue().entrySet()) {
+                                if (touched == null || !touched.contains(e.getKey())) {
+                                    output.put(name, e.getKey(), e.getValue());
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            // the tail has the latest values for all the keys it touched
+            for (Map.Entry<String, Map<Object, Object>> me : tail.values.entrySet()) {
+                for (Map.Entry<Object, Object> e : me.getValue().entrySet()) {
+                    output.put(me.getKey(), e.getKey(), e.getValue());
+                }
+            }
+        } finally {
+            if (in != null) in.close();
+        }
+    }
+
+    /**
+     * Read the transactions after snapshot id from the tx log in dir.
+     */
+    @SuppressWarnings("unchecked")
+    private Tail readTail(File dir, long id) throws IOException {
+        Tail tail = new Tail();
+        TxLogCodec codec = new TxLogCodec(new File(dir, "dict"), 0, Collections.<String>emptyList());
+        TxLogTailer tailer = new TxLogTailer(new File(dir, "txlog"), id);
+        try {
+            if (tailer.isBehind()) {
+                throw new IOException("Snapshot " + Long.toHexString(id) + " is older than the oldest record in " +
+                        tailer.getDir() + ", open the store to recover it");
+            }
+            while (tailer.next()) {
+                StoreTx<Object, Object> tx;
+                try {
+                    tx = serializer.deserialize(codec.decode(tailer.getRoutingKey(), tailer.getPayload()),
+                            StoreTx.class);
+                } catch (RuntimeException e) {
+                    throw new IOException("Error reading tx " + Long.toHexString(tailer.getId()) + ": " + e, e);
+                } catch (IOException e) {
+                    throw new IOException("Error reading tx " + Long.toHexString(tailer.getId()) + ": " + e, e);
+                }
+                if (tx.op == StoreTx.Operation.COMPUTE && !updateFunctions.containsKey(tx.fn)) {
+                    throw new IOException("Update function [" + tx.fn + "] used by tx " +
+                            Long.toHexString(tailer.getId()) + " is not registered");
+                }
+                tail.add(tx);
+            }
+            if (tailer.isDiverged()) {
+                throw new IOException("Tx log " + tailer.getDir() + " is damaged at " +
+                        Long.toHexString(tailer.getNextId()) + ", open the store to recover it");
+            }
+        } finally {
+            tailer.close();
+            codec.close();
+        }
+        if (log.isDebugEnabled()) log.debug("Read " + tail.txs.size() + " tx(s) from " + tailer.getDir());
+        return tail;
+    }
+
+    /**
+     * Create a snapshot in dir from the data in in. The directory must not contain any snapshot or tx log files.
+     * The data is read and written one chunk at a time. Returns the number of objects imported.
+     */
+    public long importStore(final InputStream in, final Format format, File dir) throws IOException {
+        dir = DirUtil.ensureDirectory(dir);
+        FileLock lock = DirUtil.lockDirectory(dir);
+        try {
+            if (SnapshotFile.list(dir).length > 0) throw new IOException(dir + " already contains snapshots");
+            String[] txLogFiles = new File(dir, "txlog").list();
+            if (txLogFiles != null && txLogFiles.length > 0) throw new IOException(dir + " already has a txlog");
+
+            // use a non-zero id so the store uses it as the first id for its empty tx log
+            File f = SnapshotFile.forId(dir, 1);
+            if (log.isDebugEnabled()) log.debug("Creating " + f);
+            final long[] count = new long[1];
+            SnapshotFile.write(serializer, new SnapshotFile.Entries() {
+                public void writeTo(final SnapshotFile.ChunkWriter w) throws IOException {
+                    if (format == Format.SNAPSHOT) {
+                        SnapshotFile.read(serializer, in, new SnapshotFile.ChunkHandler<Object, Object>() {
+                            public void onChunk(Map<String, Map<Object, Object>> chunk) throws IOException {
+                                SnapshotFile.writeMaps(chunk, w);
+                            }
+                        });
+                    } else {
+                        readLines(in, w);
+                    }
+                    count[0] = w.getEntries();
+                }
+            }, f, null, 0, null);
+            return count[0];
+        } finally {
+            lock.release();
+            lock.channel().close();
+        }
+    }
+
+    private void readLines(InputStream in, final SnapshotFile.ChunkWriter w) throws IOException {
+        ExecutorService pool = createPool("kvstore-import");
+        try {
+            LinkedList<Future<List<StoreTx<Object, Object>>>> pending =
+                    new LinkedList<Future<List<StoreTx<Object, Object>>>>();
+            ResultHandler<List<StoreTx<Object, Object>>> handler =
+                    new ResultHandler<List<StoreTx<Object, Object>>>() {
+                public void onResult(List<StoreTx<Object, Object>> txs) throws IOException {
+                    for (StoreTx<Object, Object> tx : txs) w.put(tx.map, tx.key, tx.value);
+                }
+            };
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF8"));
+            List<String> chunk = new ArrayList<String>(chunkSize);
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.length() == 0) continue;
+                chunk.add(line);
+                if (chunk.size() == chunkSize) {
+                    submit(pool, new DeserializeChunk(chunk), pending, handler);
+                    chunk = new ArrayList<String>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) submit(pool, new DeserializeChunk(chunk), pending, handler);
+            while (!pending.isEmpty()) next(pending, handler);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private ExecutorService createPool(String name) {
+        return Executors.newFixedThreadPool(threads, new DaemonThreadFactory(name));
+    }
+
+    /**
+     * Submit task to pool first waiting for the oldest pending task to complete if too many are in flight.
+     */
+    private <T> void submit(ExecutorService pool, Callable<T> task, LinkedList<Future<T>> pending,
+                ResultHandler<T> handler) throws IOException {
+        int max = maxChunksInFlight > 0 ? maxChunksInFlight : threads * 2;
+        while (pending.size() >= max) next(pending, handler);
+        pending.add(pool.submit(task));
+    }
+
+    /**
+     * Wait for the oldest pending task to complete and pass its result to handler.
+     */
+    private <T> void next(LinkedList<Future<T>> pending, ResultHandler<T> handler) throws IOException {
+        T result;
+        try {
+            result = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) throw (IOException)t;
+            throw new IOException(t.toString(), t);
+        }
+        handler.onResult(result);
+    }
+
+    private interface ResultHandler<T> {
+        void onResult(T result) throws IOException;
+    }
+
+    private Output createOutput(OutputStream out, Format format) throws IOException {
+        return format == Format.SNAPSHOT ? new SnapshotOutput(out) : new LinesOutput(out);
+    }
+
+    /**
+     * Where exported entries go.
+     */
+    private interface Output extends Closeable {
+        /** Make sure map is included even if it has no entries (NOP if the format cannot represent this). */
+        void putMap(String map);
+        void put(String map, Object key, Object value) throws IOException;
+        /** Write anything buffered and return the number of entries written. */
+        long finish() throws IOException;
+    }
+
+    private class SnapshotOutput implements Output {
+
+        private final SnapshotFile.ChunkWriter w;
+
+        SnapshotOutput(OutputStream out) throws IOException {
+            w = new SnapshotFile.ChunkWriter(serializer, out, 0, null);
+        }
+
+        public void putMap(String map) {
+            w.putMap(map);
+        }
+
+        public void put(String map, Object key, Object value) throws IOException {
+            w.put(map, key, value);
+        }
+
+        public long finish() throws IOException {
+            w.finish();
+            return w.getEntries();
+        }
+
+        public void close() {
+            w.end();
+        }
+    }
+
+    /**
+     * Serializes chunks of entries in parallel and writes them out in order.
+     */
+    private class LinesOutput implements Output, ResultHandler<byte[]> {
+
+        private final OutputStream out;
+        private final ExecutorService pool = createPool("kvstore-export");
+        private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        private List<StoreTx<Object, Object>> chunk = new ArrayList<StoreTx<Object, Object>>(chunkSize);
+        private long count;
+
+        LinesOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        public void putMap(String map) {
+        }
+
+        public void put(String map, Object key, Object value) throws IOException {
+            chunk.add(new StoreTx<Object, Object>(map, StoreTx.Operation.PUT, key, value));
+            if (chunk.size() == chunkSize) submitChunk();
+        }
+
+        private void submitChunk() throws IOException {
+            submit(pool, new SerializeChunk(chunk), pending, this);
+            count += chunk.size();
+            chunk = new ArrayList<StoreTx<Object, Object>>(chunkSize);
+        }
+
+        public void onResult(byte[] data) throws IOException {
+            out.write(data);
+        }
+
+        public long finish() throws IOException {
+            if (!chunk.isEmpty()) submitChunk();
+            while (!pending.isEmpty()) next(pending, this);
+            out.flush();
+            return count;
+        }
+
+        public void close() {
+            pool.shutdownNow();
+        }
+    }
+
+    private class SerializeChunk implements Callable<byte[]> {
+
+        private final List<StoreTx<Object, Object>> chunk;
+
+        SerializeChunk(List<StoreTx<Object, Object>> chunk) {
+            this.chunk = chunk;
+        }
+
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(chunk.size() * 128);
+            for (StoreTx<Object, Object> tx : chunk) {
+                serializer.serialize(tx, false, bos);
+                bos.write('\n');
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    private class DeserializeChunk implements Callable<List<StoreTx<Object, Object>>> {
+
+        private final List<String> chunk;
+
+        DeserializeChunk(List<String> chunk) {
+            this.chunk = chunk;
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<StoreTx<Object, Object>> call() throws IOException {
+            List<StoreTx<Object, Object>> txs = new ArrayList<StoreTx<Object, Object>>(chunk.size());
+            for (String line : chunk) {
+                StoreTx<Object, Object> tx =
+                        serializer.deserialize(new ByteArrayInputStream(line.getBytes("UTF8")), StoreTx.class);
+                if (tx.op != StoreTx.Operation.PUT) throw new IOException("Expected PUT: " + tx);
+                txs.add(tx);
+            }
+            return txs;
+        }
+    }
+
+    /**
+     * The transactions from the tx log after the snapshot. The existing values of the keys they touch are picked
+     * up from the snapshot as it is read (this is a chunk handler) and then the transactions are replayed the same
+     * way the store does it.
+     */
+    private class Tail implements SnapshotFile.ChunkHandler<Object, Object> {
+
+        final List<StoreTx<Object, Object>> txs = new ArrayList<StoreTx<Object, Object>>();
+        final Map<String, Set<Object>> touched = new HashMap<String, Set<Object>>();
+        final Map<String, Map<Object, Object>> values = new HashMap<String, Map<Object, Object>>();
+
+        void add(StoreTx<Object, Object> tx) {
+            txs.add(tx);
+            if (tx.op == StoreTx.Operation.NOP) return;
+            Set<Object> keys = touched.get(tx.map);
+            if (keys == null) touched.put(tx.map, keys = new HashSet<Object>());
+            keys.add(tx.key);
+        }
+
+        public void onChunk(Map<String, Map<Object, Object>> chunk) {
+            for (Map.Entry<String, Map<Object, Object>> me : chunk.entrySet()) {
+                Set<Object> keys = touched.get(me.getKey());
+                if (keys == null) continue;
+                for (Map.Entry<Object, Object> e : me.getValue().entrySet()) {
+                    if (keys.contains(e.getKey())) getValues(me.getKey()).put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        private Map<Object, Object> getValues(String map) {
+            Map<Object, Object> m = values.get(map);
+            if (m == null) values.put(map, m = new HashMap<Object, Object>());
+            return m;
+        }
+
+        void replay() {
+            for (StoreTx<Object, Object> tx : txs) {
+                try {
+                    apply(tx);
+                } catch (KeyValueStoreException e) {
+                    if (tx.op == StoreTx.Operation.COMPUTE) log.warn("Got " + e + " replaying " + tx);
+                    else if (log.isDebugEnabled()) log.debug("Got " + e + " replaying " + tx);
+                }
+            }
+        }
+
+        /**
+         * Apply tx to our values in the same way as the store applies transactions (but without events).
+         */
+        private void apply(StoreTx<Object, Object> tx) {
+            if (tx.op == StoreTx.Operation.NOP) return;
+            Map<Object, Object> m = getValues(tx.map);
+            Object existing = m.get(tx.key);
+            switch (tx.op) {
+                case PUT:
+                case REPLACE:
+                    if (existing != null) checkVersionNumbers(tx, existing);
+                    if (tx.op == StoreTx.Operation.PUT || existing != null) {
+                        incVersion(tx.value);
+                        m.put(tx.key, tx.value);
+                    }
+                    break;
+                case REPLACE_KVV:
+                    incVersion(tx.value);
+                    if (existing != null && existing.equals(tx.oldValue)) m.put(tx.key, tx.value);
+                    break;
+                case PUT_IF_ABSENT:
+                    incVersion(tx.value);
+                    if (existing == null) m.put(tx.key, tx.value);
+                    break;
+                case REMOVE:
+                    m.remove(tx.key);
+                    break;
+                case REMOVE_KV:
+                    if (existing == null) break;
+                    checkVersionNumbers(tx, existing);
+                    if (existing.equals(tx.value)) m.remove(tx.key);
+                    break;
+                case COMPUTE:
+                    Object updated;
+                    try {
+                        updated = updateFunctions.get(tx.fn).apply(tx.key, existing, tx.arg);
+                    } catch (RuntimeException e) {
+                        throw new KeyValueStoreException("Update function [" + tx.fn + "] failed: " + tx + ": " + e,
+                                e);
+                    }
+                    if (updated == null) {
+                        m.remove(tx.key);
+                    } else {
+                        incVersion(updated);
+                        m.put(tx.key, updated);
+                    }
+                    break;
+            }
+        }
+
+        private void checkVersionNumbers(StoreTx<Object, Object> tx, Object existing) {
+            if (versionProvider == null) return;
+            Object v1 = versionProvider.getVersion(existing);
+            Object v2 = versionProvider.getVersion(tx.value);
+            if (v1 != null && !v1.equals(v2)) {
+                throw new OptimisticLockingException("Existing value for " + tx.map + "." + tx.key + " " +
+                        "has version " + v1 + ", value has version " + v2 + ": " + tx.value);
+            }
+        }
+
+        private void incVersion(Object value) {
+            if (versionProvider != null) versionProvider.incVersion(value);
+        }
+    }
+
+    /**
+     * Export or import a store directory. The store may be in use when exporting as it is not opened.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<String>();
+        // the builder creates the same serializer as the store would
+        KeyValueStoreBuilder<Object, Object> b = new KeyValueStoreBuilder<Object, Object>();
+        Map<String, KeyValueStore.UpdateFunction<?, ?>> updateFunctions =
+                new HashMap<String, KeyValueStore.UpdateFunction<?, ?>>();
+        KeyValueStore.VersionProvider<?> versionProvider = null;
+        Format format = Format.LINES;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File snapshotDir = null;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--alias".equals(a)) {
+                String[] ac = args[++i].split("=");
+                b.alias(ac[0], Class.forName(ac[1]));
+            } else if ("--version-provider".equals(a)) {
+                versionProvider = (KeyValueStore.VersionProvider<?>)Class.forName(args[++i])
+                        .getDeclaredConstructor().newInstance();
+            } else if ("--update-function".equals(a)) {
+                String[] nc = args[++i].split("=");
+                updateFunctions.put(nc[0], (KeyValueStore.UpdateFunction<?, ?>)Class.forName(nc[1])
+                        .getDeclaredConstructor().newInstance());
+            } else if ("--snapshot".equals(a)) {
+                format = Format.SNAPSHOT;
+            } else if ("--snapshot-dir".equals(a)) {
+                snapshotDir = new File(args[++i]);
+            } else if ("--threads".equals(a)) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                rest.add(a);
+            }
+        }
+        if (rest.size() != 3 || !("export".equals(rest.get(0)) || "import".equals(rest.get(0)))) {
+            System.err.println("Usage: KeyValueStoreDump [options] export <store dir> <file|->\n" +
+                    "       KeyValueStoreDump [options] import <file|-> <store dir>\n" +
+                    "Options:\n" +
+                    "  --alias <alias>=<class>         Class alias used by the store (repeat as needed)\n" +
+                    "  --version-provider <class>      Version provider used by the store\n" +
+                    "  --update-function <name>=<class> Update function used by the store (repeat as needed)\n" +
+                    "  --snapshot                      Use snapshot format instead of one record per line\n" +
+                    "  --snapshot-dir <dir>            Separate snapshot directory used by the store (export only)\n" +
+                    "  --threads <n>                   Number of threads to use");
+            System.exit(1);
+        }
+
+        KeyValueStoreDump dump = new KeyValueStoreDump(b.getSerializer()).threads(threads)
+                .versionProvider(versionProvider);
+        for (Map.Entry<String, KeyValueStore.UpdateFunction<?, ?>> e : updateFunctions.entrySet()) {
+            dump.updateFunction(e.getKey(), e.getValue());
+        }
+        long count;
+        if ("export".equals(rest.get(0))) {
+            OutputStream out = "-".equals(rest.get(2)) ? System.out : new FileOutputStream(rest.get(2));
+            try {
+                count = dump.exportDir(new File(rest.get(1)), snapshotDir, new BufferedOutputStream(out, 65536),
+                        format);
+            } finally {
+                if (out != System.out) out.close();
+            }
+        } else {
+            InputStream in = "-".equals(rest.get(1)) ? System.in : new FileInputStream(rest.get(1));
+            try {
+                count = dump.importStore(new BufferedInputStream(in, 65536), format, new File(rest.get(2)));
+            } finally {
+                if (in != System.in) in.close();
+            }
+        }
+        System.err.println(rest.get(0) + "ed " + count + " object(s)");
+    }
+}
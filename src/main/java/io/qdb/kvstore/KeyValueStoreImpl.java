@@ -3,20 +3,24 @@ package io.qdb.kvstore;
 import io.qdb.buffer.MessageBuffer;
 import io.qdb.buffer.MessageCursor;
 import io.qdb.buffer.PersistentMessageBuffer;
+import com.google.common.base.Function;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * KV store implementation. Create these using {@link KeyValueStoreBuilder}.
  */
-public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
+public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V>, AdmissionController.Store {
 
     private static final Logger log = LoggerFactory.getLogger(KeyValueStoreImpl.class);
 
@@ -24,117 +28,386 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
     private final VersionProvider<V> versionProvider;
     private final Listener<K, V> listener;
     private final File dir;
+    private final File snapshotDir;
+    private final SnapshotScheduler snapshotScheduler;
     private final int snapshotCount;
     private final int snapshotIntervalSecs;
     private final Timer snapshotTimer;
+    private final ValueCopier<V> readCopier;
+    private final boolean copyOnWrite;
+    private final Map<String, Boolean> copyOnReadMaps;
+    private final Map<String, Boolean> copyOnWriteMaps;
+    // false until the tx log has been replayed
+    private boolean copyingWrites;
+    private final ValueCopier<V> copier;
+    private final Map<String, UpdateFunction<K, V>> updateFunctions;
+    private final int queryThreads;
+    private final AdmissionController admissionController;
+    private final boolean readOnly;
+    private final TxLogCodec codec;
+    private final RecoveryReport recoveryReport = new RecoveryReport();
 
-    private FileOutputStream lockFile;
     private FileLock lock;
     private MessageBuffer txLog;
     private long mostRecentSnapshotId;
     private boolean busySavingSnapshot;
-    private boolean snapshotScheduled;
+    private boolean snapshotRequested;
+    private long snapshotDueAt;
+    private ExecutorService queryPool;
+    private TxLogTailer tailer;
 
-    private final ConcurrentMap<String, ConcurrentMap<K, V>> maps = new ConcurrentHashMap<String, ConcurrentMap<K, V>>();
+    // only replaced when a read only store reloads
+    private volatile ConcurrentMap<String, ConcurrentMap<K, V>> maps =
+            new ConcurrentHashMap<String, ConcurrentMap<K, V>>();
 
     @SuppressWarnings("unchecked")
     KeyValueStoreImpl(KeyValueStoreSerializer serializer, VersionProvider<V> versionProvider, Listener<K, V> listener,
                       File dir, int txLogSizeM, int maxObjectSize, int snapshotCount,
-                      int snapshotIntervalSecs)
+                      int snapshotIntervalSecs, ValueCopier<V> copier, boolean copyOnRead, boolean copyOnWrite,
+                      Map<String, Boolean> copyOnReadMaps, Map<String, Boolean> copyOnWriteMaps,
+                      File snapshotDir, SnapshotScheduler snapshotScheduler, int queryThreads,
+                      Map<String, UpdateFunction<K, V>> updateFunctions, AdmissionController admissionController,
+                      boolean readOnly, int tailIntervalMs, TxLogCodec codec, boolean salvage)
             throws IOException {
         this.serializer = serializer;
         this.versionProvider = versionProvider;
         this.dir = dir;
         this.snapshotCount = snapshotCount;
         this.snapshotIntervalSecs = snapshotIntervalSecs;
+        this.snapshotScheduler = snapshotScheduler;
+        this.queryThreads = queryThreads;
+        this.copier = copier;
+        this.readCopier = copyOnRead ? copier : null;
+        this.copyOnReadMaps = copyOnReadMaps;
+        this.copyOnWrite = copyOnWrite;
+        this.copyOnWriteMaps = copyOnWriteMaps;
+        this.updateFunctions = updateFunctions;
+        this.admissionController = admissionController;
+        this.readOnly = readOnly;
+        this.codec = codec;
+
+        if (readOnly) {
+            dir = DirUtil.checkDirectory(dir);
+            this.snapshotDir = snapshotDir == null ? dir : DirUtil.checkDirectory(snapshotDir);
+            mostRecentSnapshotId = loadNewestSnapshot(maps);
+            tailer = new TxLogTailer(new File(dir, "txlog"), mostRecentSnapshotId);
+            if (tailer.isBehind()) {
+                throw new IOException("Most recent snapshot " + Long.toHexString(mostRecentSnapshotId) +
+                        " is older than oldest record in txlog");
+            }
+            int count = tail();
+            if (log.isDebugEnabled()) log.debug("Replayed " + count + " transaction(s)");
+            this.listener = listener;
+            snapshotTimer = new Timer("kvstore-tail-" + dir.getName(), true);
+            snapshotTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        int n = tail();
+                        if (tailer.isDiverged() || (n == 0 && tailer.isBehind())) reload();
+                    } catch (Throwable e) {
+                        log.error("Error tailing " + KeyValueStoreImpl.this.dir + ": " + e, e);
+                    }
+                }
+            }, tailIntervalMs, tailIntervalMs);
+            return;
+        }
 
         dir = DirUtil.ensureDirectory(dir);
+        this.snapshotDir = snapshotDir == null ? dir : DirUtil.ensureDirectory(snapshotDir);
 
-        lockFile = new FileOutputStream(new File(dir, "lock"));
-        lockFile.write(0);
-        lock = lockFile.getChannel().tryLock();
-        if (lock == null) {
-            lockFile.close();
-            throw new DirLockedException(dir + " is in use");
+        lock = DirUtil.lockDirectory(dir);
+
+        boolean ok = false;
+        try {
+            txLog = new PersistentMessageBuffer(DirUtil.ensureDirectory(new File(dir, "txlog")));
+            txLog.setMaxSize(txLogSizeM * 1000000);
+            txLog.setMaxPayloadSize(maxObjectSize + 100);
+
+            boolean txLogEmpty = txLog.getNextId() == 0;
+            long oldestId = txLog.getOldestId();
+            mostRecentSnapshotId = recover(oldestId, txLogEmpty);
+            if (!recoveryReport.isLossless() && !salvage) {
+                throw new IOException("Unable to recover " + dir + " without losing data: " + recoveryReport);
+            }
+
+            if (txLogEmpty && mostRecentSnapshotId > 0) {
+                // probably this a recovery after a cluster failure by copying snapshot files around and nuking tx logs
+                // to get everyone in sync
+                log.info("The txlog is empty but we have snapshot " + Long.toHexString(mostRecentSnapshotId) +
+                        " so using that as next id");
+                txLog.setFirstId(mostRecentSnapshotId);
+            }
+
+            long from = txLogEmpty ? mostRecentSnapshotId : Math.max(mostRecentSnapshotId, oldestId);
+            recoveryReport.replayFromId = from;
+            for (MessageCursor c = txLog.cursor(from); c.next(); ) {
+                StoreTx tx;
+                try {
+                    String routingKey = c.getRoutingKey();
+                    tx = this.serializer.deserialize(codec.decode(routingKey, c.getPayload()), StoreTx.class);
+                } catch (TxLogCodec.CorruptRecordException e) {
+                    // only records that fail their checksum are skipped, anything else is a configuration problem
+                    if (!salvage) {
+                        throw new IOException("Error reading tx " + Long.toHexString(c.getId()) + ": " + e, e);
+                    }
+                    log.error("Error reading tx " + Long.toHexString(c.getId()) + ", skipping: " + e);
+                    recoveryReport.skippedTxIds.add(c.getId());
+                    continue;
+                } catch (IOException e) {
+                    throw new IOException("Error reading tx " + Long.toHexString(c.getId()) + ": " + e, e);
+                } catch (RuntimeException e) {
+                    throw new IOException("Error reading tx " + Long.toHexString(c.getId()) + ": " + e, e);
+                }
+                if (tx.op == StoreTx.Operation.COMPUTE && !updateFunctions.containsKey(tx.fn)) {
+                    throw new IOException("Update function [" + tx.fn + "] used by tx " + Long.toHexString(c.getId()) +
+                            " is not registered");
+                }
+                ++recoveryReport.replayed;
+                try {
+                    apply(tx);
+                } catch (KeyValueStoreException e) {
+                    if (tx.op == StoreTx.Operation.COMPUTE) {
+                        // the function also failed when the tx was first run unless it isn't deterministic
+                        log.warn("Got " + e + " replaying tx " + Long.toHexString(c.getId()));
+                        recoveryReport.failedComputeTxIds.add(c.getId());
+                    } else if (log.isDebugEnabled()) {
+                        log.debug("Got " + e + " replaying " + tx);
+                    }
+                }
+            }
+            recoveryReport.replayToId = txLog.getNextId();
+            if (recoveryReport.isLossless() && recoveryReport.failedComputeTxIds.isEmpty()) {
+                if (log.isDebugEnabled()) log.debug("Recovered " + dir + ": " + recoveryReport);
+            } else {
+                log.warn("Recovered " + dir + (recoveryReport.isLossless() ? "" : " with data loss") + ": " +
+                        recoveryReport);
+            }
+
+            // set listener now so it doesn't get events when transactions are replayed
+            this.listener = listener;
+            // values from the tx log are not referenced by anyone else so only start copying now
+            copyingWrites = true;
+
+            codec.train(maps.keySet());
+            codec.onOpen(txLog.getNextId());
+
+            snapshotTimer = new Timer("kvstore-snapshot-" + dir.getName(), true);
+            // make sure the next restart does not have to salvage anything unless nothing useful was recovered
+            if (!recoveryReport.isLossless() && recoveryReport.hasRecoveredData()) scheduleSnapshot(true);
+            ok = true;
+        } finally {
+            // don't leave the directory locked if the store cannot be opened
+            if (!ok) closeAfterFailedOpen();
         }
+    }
 
-        txLog = new PersistentMessageBuffer(DirUtil.ensureDirectory(new File(dir, "txlog")));
-        txLog.setMaxSize(txLogSizeM * 1000000);
-        txLog.setMaxPayloadSize(maxObjectSize + 100);
+    private void closeAfterFailedOpen() {
+        try {
+            if (txLog != null) txLog.close();
+        } catch (IOException e) {
+            log.error("Error closing " + txLog + ": " + e, e);
+        }
+        codec.close();
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            log.error("Error unlocking " + dir + ": " + e, e);
+        }
+    }
 
-        File[] files = getSnapshotFiles();
-        Map<String, Map<K, V>> snapshot = null;
+    /**
+     * Load the snapshot that needs the least replay of the tx log without losing data into maps and return its id.
+     * Snapshots newer than that are recorded as rejected in the report. If there is no such snapshot then the one
+     * with the smallest gap before the start of the tx log is used, salvaged up to its last good chunk if need be.
+     * When several have the same gap the one with the most entries wins. Starting with an empty store is only
+     * preferred to a salvaged snapshot if the tx log goes back to the very first transaction. If the tx log is
+     * empty it is treated as starting at the newest snapshot.
+     */
+    private long recover(long oldestId, boolean txLogEmpty) throws IOException {
+        File[] files = SnapshotFile.list(snapshotDir);
+        if (txLogEmpty) oldestId = files.length > 0 ? SnapshotFile.getId(files[files.length - 1]) : 0;
+        SnapshotFile.Contents<K, V> best = null;
+        File bestFile = null;
+        long bestGap = 0;
         for (int i = files.length - 1; i >= 0; i--) {
             File f = files[i];
-            BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
-            try {
-                snapshot = (Map<String, Map<K, V>>)this.serializer.deserialize(in, Map.class);
-            } catch (Exception e) {
-                log.error("Error loading " + f + ", ignoring: " + e);
+            long gap = Math.max(0, oldestId - SnapshotFile.getId(f));
+            if (best != null && gap > bestGap) {
+                recoveryReport.rejectedSnapshots.add(f.getName() + ": older than start of txlog " +
+                        Long.toHexString(oldestId));
                 continue;
-            } finally {
-                try {
-                    in.close();
-                } catch (IOException ignore) {
-                }
             }
-
-            String name = f.getName();
-            int j = name.indexOf('-');
-            int k = name.lastIndexOf('.');
-            mostRecentSnapshotId = Long.parseLong(name.substring(j + 1, k), 16);
-            if (log.isDebugEnabled()) log.debug("Loaded " + f);
-            break;
+            SnapshotFile.Contents<K, V> c = SnapshotFile.salvage(serializer, f);
+            if (gap == 0 && c.isComplete()) {
+                if (best != null) rejectSnapshot(bestFile, best, oldestId);
+                return useSnapshot(f, c, 0);
+            }
+            // snapshots are newest first so gap is never less than bestGap here
+            if ((c.isComplete() || c.getEntries() > 0) && (best == null || c.getEntries() > best.getEntries())) {
+                if (best != null) rejectSnapshot(bestFile, best, oldestId);
+                best = c;
+                bestFile = f;
+                bestGap = gap;
+            } else {
+                rejectSnapshot(f, c, oldestId);
+            }
+        }
+        if (best != null) {
+            // the tx log has everything so starting with an empty store loses nothing
+            if (oldestId == 0 && !txLogEmpty) {
+                rejectSnapshot(bestFile, best, oldestId);
+                return 0;
+            }
+            return useSnapshot(bestFile, best, bestGap);
         }
+        if (!txLogEmpty) recoveryReport.logGapBytes = oldestId;
+        else if (files.length > 0) recoveryReport.snapshotError = "No snapshot could be salvaged";
+        return 0;
+    }
 
-        if (mostRecentSnapshotId < txLog.getOldestId()) {
-            throw new IOException("Most recent snapshot " + Long.toHexString(mostRecentSnapshotId) +
-                    " is older than oldest record in txlog " + Long.toHexString(txLog.getOldestId()));
+    private long useSnapshot(File f, SnapshotFile.Contents<K, V> c, long gap) {
+        for (Map.Entry<String, Map<K, V>> e : c.getMaps().entrySet()) {
+            maps.put(e.getKey(), new ConcurrentHashMap<K, V>(e.getValue()));
+        }
+        recoveryReport.snapshot = f;
+        recoveryReport.snapshotChunks = c.getChunks();
+        recoveryReport.snapshotEntries = c.getEntries();
+        if (!c.isComplete()) {
+            recoveryReport.snapshotError = c.getError();
+            recoveryReport.snapshotBytesLost = f.length() - c.getValidBytes();
         }
+        recoveryReport.logGapBytes = gap;
+        if (log.isDebugEnabled()) log.debug("Loaded " + f);
+        return SnapshotFile.getId(f);
+    }
 
-        if (txLog.getNextId() == 0 && mostRecentSnapshotId > 0) {
-            // probably this a recovery after a cluster failure by copying snapshot files around and nuking tx logs
-            // to get everyone in sync
-            log.info("The txlog is empty but we have snapshot " + Long.toHexString(mostRecentSnapshotId) +
-                    " so using that as next id");
-            txLog.setFirstId(mostRecentSnapshotId);
+    private void rejectSnapshot(File f, SnapshotFile.Contents<K, V> c, long oldestId) {
+        String reason;
+        if (!c.isComplete()) {
+            reason = "damaged after " + c.getChunks() + " chunk(s) with " + c.getEntries() + " entries: " +
+                    c.getError();
+        } else {
+            reason = "older than start of txlog " + Long.toHexString(oldestId);
         }
+        recoveryReport.rejectedSnapshots.add(f.getName() + ": " + reason);
+    }
 
-        if (snapshot != null) {
+    /**
+     * Get details of what was loaded and skipped when this store was opened. This is empty for read only stores.
+     */
+    public RecoveryReport getRecoveryReport() {
+        return recoveryReport;
+    }
+
+    /**
+     * Load the newest snapshot that can be read into target and return its id or 0 if there are none.
+     */
+    private long loadNewestSnapshot(Map<String, ConcurrentMap<K, V>> target) {
+        File[] files = SnapshotFile.list(snapshotDir);
+        for (int i = files.length - 1; i >= 0; i--) {
+            File f = files[i];
+            Map<String, Map<K, V>> snapshot;
+            try {
+                snapshot = SnapshotFile.read(serializer, f);
+            } catch (Exception e) {
+                // in read only mode the primary might have deleted it after we listed the directory
+                if (readOnly && !f.exists()) continue;
+                log.error("Error loading " + f + ", ignoring: " + e);
+                continue;
+            }
             for (Map.Entry<String, Map<K, V>> e : snapshot.entrySet()) {
-                maps.put(e.getKey(), new ConcurrentHashMap<K, V>(e.getValue()));
+                target.put(e.getKey(), new ConcurrentHashMap<K, V>(e.getValue()));
             }
+            if (log.isDebugEnabled()) log.debug("Loaded " + f);
+            return SnapshotFile.getId(f);
         }
+        return 0;
+    }
 
+    /**
+     * Apply any new transactions written to the log by the primary process and return how many were applied.
+     */
+    @SuppressWarnings("unchecked")
+    private int tail() throws IOException {
         int count = 0;
-        for (MessageCursor c = txLog.cursor(mostRecentSnapshotId); c.next(); count++) {
-            StoreTx tx = this.serializer.deserialize(new ByteArrayInputStream(c.getPayload()), StoreTx.class);
+        for (; tailer.next(); count++) {
+            StoreTx<K, V> tx;
+            try {
+                tx = serializer.deserialize(codec.decode(tailer.getRoutingKey(), tailer.getPayload()),
+                        StoreTx.class);
+            } catch (TxLogCodec.CorruptRecordException e) {
+                // we are reading garbage because the log has been truncated and rewritten
+                log.warn("Error reading tx " + Long.toHexString(tailer.getId()) + ": " + e);
+                tailer.setDiverged();
+                break;
+            } catch (Exception e) {
+                log.error("Error reading tx " + Long.toHexString(tailer.getId()) + ", skipping: " + e);
+                continue;
+            }
             try {
                 apply(tx);
             } catch (KeyValueStoreException e) {
                 if (log.isDebugEnabled()) log.debug("Got " + e + " replaying " + tx);
             }
         }
-        if (log.isDebugEnabled()) log.debug("Replayed " + count + " transaction(s)");
-
-        // set listener now so it doesn't get events when transactions are replayed
-        this.listener = listener;
+        return count;
+    }
 
-        snapshotTimer = new Timer("kvstore-snapshot-" + dir.getName(), true);
+    /**
+     * The transactions we need have been deleted from the log (or the log has been truncated and rewritten after a
+     * crash) so load the newest snapshot and continue from there. All the maps are replaced at once so readers
+     * never see a mix of old and new maps. No events are fired for the changes.
+     */
+    private void reload() throws IOException {
+        ConcurrentMap<String, ConcurrentMap<K, V>> fresh = new ConcurrentHashMap<String, ConcurrentMap<K, V>>();
+        long id = loadNewestSnapshot(fresh);
+        TxLogTailer t = new TxLogTailer(tailer.getDir(), id);
+        if (t.isBehind()) {
+            // the primary has not finished writing a new snapshot yet
+            if (log.isDebugEnabled()) log.debug("Snapshot " + Long.toHexString(id) + " is too old, will retry");
+            return;
+        }
+        if (tailer.isDiverged()) {
+            log.warn("Reloading " + dir + " from snapshot " + Long.toHexString(id) + " as the tx log has diverged " +
+                    "at " + Long.toHexString(tailer.getNextId()));
+        } else {
+            log.info("Reloading " + dir + " from snapshot " + Long.toHexString(id) + " after tx log rollover");
+        }
+        synchronized (this) {
+            maps = fresh;
+            mostRecentSnapshotId = id;
+            tailer.close();
+            tailer = t;
+        }
+        tail();
     }
 
-    private File[] getSnapshotFiles() {
-        File[] files = dir.listFiles(new RegexFilenameFilter("[0-9a-f]+\\.snapshot"));
-        Arrays.sort(files);
-        return files;
+    /**
+     * Is this a read only store following the changes made by another process?
+     * @see KeyValueStoreBuilder#readOnly(boolean)
+     */
+    public boolean isReadOnly() {
+        return readOnly;
     }
 
     @Override
     public void close() throws IOException {
         snapshotTimer.cancel();
+        synchronized (this) {
+            if (queryPool != null) queryPool.shutdownNow();
+        }
+        if (readOnly) {
+            synchronized (this) {
+                tailer.close();
+            }
+            return;
+        }
         txLog.close();
+        codec.close();
         lock.release();
-        lockFile.close();
+        lock.channel().close();
     }
 
     @Override
@@ -143,16 +416,23 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
     }
 
     /**
-     * Save a snapshot. This is a NOP if we are already busy saving a snapshot or if no new transactions have been
-     * applied since the most recent snapshot was saved.
+     * Save a snapshot. This is a NOP if no new transactions have been applied since the most recent snapshot was
+     * saved. If we are already busy saving a snapshot this returns immediately and one more snapshot is taken when
+     * the current one is done so all the requests made in the meantime are handled by a single snapshot.
      */
     public void saveSnapshot() throws IOException {
+        if (readOnly) return;
         Map<String, Map<K, V>> snapshot;
         long id;
+        synchronized (this) {
+            if (busySavingSnapshot) {
+                snapshotRequested = true;
+                return;
+            }
+            busySavingSnapshot = true;
+        }
         try {
             synchronized (this) {
-                if (busySavingSnapshot) return;
-                busySavingSnapshot = true;
                 txLog.sync();
                 id = txLog.getNextId();
                 if (id == mostRecentSnapshotId) return; // nothing to do
@@ -161,42 +441,35 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
                     snapshot.put(e.getKey(), new HashMap<K, V>(e.getValue()));
                 }
             }
-            File f = new File(dir, String.format("%016x", id) + ".snapshot");
+            // pick up any new map names for the compression dictionary, outside our lock as this syncs a file
+            codec.train(snapshot.keySet());
+            File f = SnapshotFile.forId(snapshotDir, id);
             if (log.isDebugEnabled()) log.debug("Creating " + f);
-            boolean ok = false;
-            FileOutputStream out = new FileOutputStream(f);
-            try {
-                serializer.serialize(snapshot, true, out);
-                out.flush();
-                out.getChannel().force(true);
-                out.close();
-                synchronized (this) {
-                    mostRecentSnapshotId = id;
-                }
-                ok = true;
-            } finally {
-                if (!ok) {
-                    try {
-                        out.close();
-                    } catch (IOException ignore) {
-                    }
-                    if (!f.delete()) {
-                        log.error("Unable to delete bad snapshot: " + f);
-                    }
-                }
+            long start = System.currentTimeMillis();
+            long size = SnapshotFile.write(serializer, snapshot, f, snapshotScheduler, codec.getLevel(),
+                    codec.getDictionary());
+            snapshotScheduler.onSnapshotSaved(size, System.currentTimeMillis() - start);
+            synchronized (this) {
+                mostRecentSnapshotId = id;
             }
+            admissionController.onSnapshotSaved();
 
             deleteOldSnapshots();
+            codec.deleteUnusedDictionaries(txLog.getOldestId());
 
         } finally {
             synchronized (this) {
                 busySavingSnapshot = false;
+                if (snapshotRequested) {
+                    snapshotRequested = false;
+                    scheduleSnapshot(true);
+                }
             }
         }
     }
 
     private void deleteOldSnapshots() {
-        File[] a = getSnapshotFiles();
+        File[] a = SnapshotFile.list(snapshotDir);
         for (int i = 0; i < (a.length - snapshotCount); i++) {
             if (a[i].delete()) {
                 if (log.isDebugEnabled()) log.debug("Deleted " + a[i]);
@@ -206,27 +479,60 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
         }
     }
 
+    @Override
+    public synchronized double getWritePressure() {
+        if (readOnly) return 0.0;
+        long max = txLog.getMaxSize();
+        if (max <= 0) return 0.0;
+        try {
+            return Math.min(1.0, (txLog.getNextId() - mostRecentSnapshotId) / (double)max);
+        } catch (IOException e) {
+            throw new KeyValueStoreException("Error reading tx log: " + e, e);
+        }
+    }
+
+    @Override
+    public void snapshotAsap() {
+        scheduleSnapshot(true);
+    }
+
     /**
-     * Attempt to apply tx. It is written to the transaction log and then applied to our maps.
+     * Attempt to apply tx. It is written to the transaction log and then applied to our maps. This might be
+     * delayed or rejected by admission control if the transaction log is filling up.
      */
     @SuppressWarnings("unchecked")
-    private Object exec(StoreTx<K, V> tx) {
+    private Object exec(StoreTx<K, V> tx, boolean lowPriority) {
+        if (readOnly) throw new KeyValueStoreException("Store is read only: " + dir);
+        admissionController.admit(this, lowPriority);
+
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
             serializer.serialize(tx, false, bos);
         } catch (IOException e) {
             throw new KeyValueStoreException("Error serializing tx: " + e, e);
         }
-        byte[] payload = bos.toByteArray();
+        if (tx.op == StoreTx.Operation.COMPUTE) {
+            // run the function on exactly what replay will see so it gets the same argument types (e.g. Long)
+            try {
+                tx = serializer.deserialize(new ByteArrayInputStream(bos.toByteArray()), StoreTx.class);
+            } catch (IOException e) {
+                throw new KeyValueStoreException("Error deserializing tx: " + e, e);
+            }
+        }
+        TxLogCodec.Record record = codec.encode(bos.toByteArray());
 
         long timestamp = System.currentTimeMillis();
         boolean snapshotNow = false;
         synchronized (this) {
             try {
-                long txId = txLog.append(timestamp, null, payload);
+                long start = System.nanoTime();
+                long txId = txLog.append(timestamp, record.routingKey, record.payload);
+                codec.onAppend(record, txId);
+                int length = record.routingKey.length() + record.payload.length;
                 // the bytes calculation isn't perfectly accurate but good enough
-                long bytes = (txId + payload.length) - mostRecentSnapshotId;
-                snapshotNow = bytes > txLog.getMaxSize() / 2; // half our log space is gone so do a snapshot now
+                long bytes = (txId + length) - mostRecentSnapshotId;
+                snapshotNow = snapshotScheduler.onAppend(bytes, txLog.getMaxSize(), length,
+                        System.nanoTime() - start);
             } catch (IOException e) {
                 throw new KeyValueStoreException("Error appending to tx log: " + e, e);
             } finally {
@@ -237,13 +543,17 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
     }
 
     private synchronized void scheduleSnapshot(boolean asap) {
-        if (!snapshotScheduled) {
+        long delay = asap ? 1L : snapshotIntervalSecs * 1000L;
+        long due = System.currentTimeMillis() + delay;
+        // schedule a new task if nothing is pending or this one needs to run sooner than the pending one
+        if (snapshotDueAt == 0 || due < snapshotDueAt) {
+            snapshotDueAt = due;
             snapshotTimer.schedule(new TimerTask() {
                 @Override
                 public void run() {
                     try {
                         synchronized (KeyValueStoreImpl.this) {
-                            snapshotScheduled = false;
+                            snapshotDueAt = 0;
                         }
                         saveSnapshot();
                     } catch (Throwable e) {
@@ -251,7 +561,7 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
                         // todo the store should go offline if it cannot save snapshots
                     }
                 }
-            }, asap ? 1L : snapshotIntervalSecs * 1000L);
+            }, delay);
         }
     }
 
@@ -280,7 +590,7 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
                 if (tx.op == StoreTx.Operation.PUT || existing != null) {
                     if (m == null) maps.put(tx.map, m = new ConcurrentHashMap<K, V>());
                     versionProvider.incVersion(tx.value);
-                    m.put(tx.key, tx.value);
+                    m.put(tx.key, copyForWrite(tx.map, tx.value));
                     if (listener != null) {
                         dispatch(new ObjectEvent<K, V>(this, tx.map,
                                 existing == null ? ObjectEvent.Type.CREATED : ObjectEvent.Type.UPDATED, tx.key, tx.value));
@@ -291,7 +601,7 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
             case REPLACE_KVV:
                 if (m == null) return Boolean.FALSE;
                 versionProvider.incVersion(tx.value);
-                boolean replace = m.replace(tx.key, tx.oldValue, tx.value);
+                boolean replace = m.replace(tx.key, tx.oldValue, copyForWrite(tx.map, tx.value));
                 if (replace && listener != null) {
                     dispatch(new ObjectEvent<K, V>(this, tx.map, ObjectEvent.Type.UPDATED, tx.key, tx.value));
                 }
@@ -300,7 +610,7 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
             case PUT_IF_ABSENT:
                 if (m == null) maps.put(tx.map, m = new ConcurrentHashMap<K, V>());
                 versionProvider.incVersion(tx.value);
-                V v = m.putIfAbsent(tx.key, tx.value);
+                V v = m.containsKey(tx.key) ? m.get(tx.key) : m.putIfAbsent(tx.key, copyForWrite(tx.map, tx.value));
                 if (v == null && listener != null) {
                     dispatch(new ObjectEvent<K, V>(this, tx.map, ObjectEvent.Type.CREATED, tx.key, tx.value));
                 }
@@ -315,6 +625,37 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
                 }
                 return ans;
 
+            case COMPUTE:
+                UpdateFunction<K, V> fn = updateFunctions.get(tx.fn);
+                if (fn == null) throw new KeyValueStoreException("Unknown update function [" + tx.fn + "]: " + tx);
+                existing = m != null ? m.get(tx.key) : null;
+                V updated;
+                try {
+                    ValueCopier<V> c = existing == null ? null : getComputeCopier(tx.map);
+                    updated = fn.apply(tx.key, c == null ? existing : c.copy(existing), tx.arg);
+                } catch (RuntimeException e) {
+                    throw new KeyValueStoreException("Update function [" + tx.fn + "] failed: " + tx + ": " + e, e);
+                }
+                if (updated == null) {
+                    if (existing != null) {
+                        m.remove(tx.key);
+                        if (m.isEmpty()) maps.remove(tx.map);
+                        if (listener != null) {
+                            dispatch(new ObjectEvent<K, V>(this, tx.map, ObjectEvent.Type.DELETED, tx.key, existing));
+                        }
+                    }
+                } else {
+                    if (m == null) maps.put(tx.map, m = new ConcurrentHashMap<K, V>());
+                    versionProvider.incVersion(updated);
+                    m.put(tx.key, updated);
+                    if (listener != null) {
+                        dispatch(new ObjectEvent<K, V>(this, tx.map,
+                                existing == null ? ObjectEvent.Type.CREATED : ObjectEvent.Type.UPDATED, tx.key,
+                                updated));
+                    }
+                }
+                return updated;
+
             case REMOVE_KV:
                 if (m == null) return Boolean.FALSE;
                 existing = m.get(tx.key);
@@ -330,6 +671,46 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
         throw new KeyValueStoreException("Unhandled operation: " + tx);
     }
 
+    private V copyForWrite(String map, V value) {
+        ValueCopier<V> c = copyingWrites ? getWriteCopier(map) : null;
+        return c == null || value == null ? value : c.copy(value);
+    }
+
+    private ValueCopier<V> getWriteCopier(String map) {
+        Boolean on = copyOnWriteMaps.get(map);
+        return (on == null ? copyOnWrite : on) ? copier : null;
+    }
+
+    /**
+     * Get the copier for existing values passed to update functions for map or null if map is not copied on read
+     * or on write. This ignores copyingWrites so functions see the same thing when the tx log is replayed.
+     */
+    private ValueCopier<V> getComputeCopier(String map) {
+        ValueCopier<V> c = getWriteCopier(map);
+        return c != null ? c : getReadCopier(map);
+    }
+
+    /**
+     * Get a function that copies values read from map or null if they are not copied.
+     */
+    Function<V, V> getReadFunction(String map) {
+        final ValueCopier<V> c = getReadCopier(map);
+        if (c == null) return null;
+        return new Function<V, V>() {
+            public V apply(V value) {
+                return value == null ? null : c.copy(value);
+            }
+        };
+    }
+
+    /**
+     * Get the copier to use for values read from map or null if they are not copied.
+     */
+    ValueCopier<V> getReadCopier(String map) {
+        Boolean on = copyOnReadMaps.get(map);
+        return on == null ? readCopier : on ? copier : null;
+    }
+
     private void checkVersionNumbers(StoreTx<K, V> tx, V existing) {
         Object v1 = versionProvider.getVersion(existing);
         Object v2 = versionProvider.getVersion(tx.value);
@@ -345,35 +726,97 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
     }
 
     @Override
-    public ConcurrentMap<K, V> getMap(String name) {
-        return new Namespace(name);
+    public KeyValueMap<K, V> getMap(String name) {
+        return new Namespace(name, false);
     }
 
     @SuppressWarnings("unchecked")
     @Override
-    public <T extends V> ConcurrentMap<K, T> getMap(String name, Class<T> cls) {
-        return (ConcurrentMap<K, T>)getMap(name);
+    public <T extends V> KeyValueMap<K, T> getMap(String name, Class<T> cls) {
+        return (KeyValueMap<K, T>)getMap(name);
+    }
+
+    /**
+     * Get the pool used to run queries, creating it if needed.
+     */
+    synchronized ExecutorService getQueryPool() {
+        if (queryPool == null) {
+            queryPool = Executors.newFixedThreadPool(queryThreads,
+                    new DaemonThreadFactory("kvstore-query-" + dir.getName()));
+        }
+        return queryPool;
+    }
+
+    SnapshotScheduler getSnapshotScheduler() {
+        return snapshotScheduler;
+    }
+
+    int getQueryThreads() {
+        return queryThreads;
+    }
+
+    /**
+     * Add the keys and values in map to the lists. If consistent is true then this is done while holding our lock
+     * so no changes can be made at the same time.
+     */
+    void collect(String map, boolean consistent, List<K> keys, List<V> values) {
+        if (consistent) {
+            synchronized (this) {
+                collect(map, false, keys, values);
+            }
+        } else {
+            ConcurrentMap<K, V> m = maps.get(map);
+            if (m == null) return;
+            for (Map.Entry<K, V> e : m.entrySet()) {
+                keys.add(e.getKey());
+                values.add(e.getValue());
+            }
+        }
     }
 
     @SuppressWarnings({"unchecked", "NullableProblems"})
-    public class Namespace implements ConcurrentMap<K, V> {
+    public class Namespace implements KeyValueMap<K, V> {
 
         private final String name;
+        private final boolean lowPriority;
+        private final ValueCopier<V> readCopier;
 
-        public Namespace(String name) {
+        public Namespace(String name, boolean lowPriority) {
             this.name = name;
+            this.lowPriority = lowPriority;
+            this.readCopier = getReadCopier(name);
+        }
+
+        public KeyValueMap<K, V> lowPriority() {
+            return lowPriority ? this : new Namespace(name, true);
+        }
+
+        private Object exec(StoreTx<K, V> tx) {
+            return KeyValueStoreImpl.this.exec(tx, lowPriority);
+        }
+
+        private V copyForRead(V value) {
+            return readCopier == null || value == null ? value : readCopier.copy(value);
+        }
+
+        public MapQuery<K, V> query() {
+            return new MapQuery<K, V>(new MapQuery.Source<K, V>() {
+                public void collect(boolean consistent, List<K> keys, List<V> values) {
+                    KeyValueStoreImpl.this.collect(name, consistent, keys, values);
+                }
+            }, getQueryPool(), queryThreads, readCopier == null ? null : readFunction);
         }
 
         public V put(K key, V value) {
-            return (V)exec(new StoreTx<K, V>(name, StoreTx.Operation.PUT, key, value));
+            return copyForRead((V)exec(new StoreTx<K, V>(name, StoreTx.Operation.PUT, key, value)));
         }
 
         public V putIfAbsent(K key, V value) {
-            return (V)exec(new StoreTx<K, V>(name, StoreTx.Operation.PUT_IF_ABSENT, key, value));
+            return copyForRead((V)exec(new StoreTx<K, V>(name, StoreTx.Operation.PUT_IF_ABSENT, key, value)));
         }
 
         public V remove(Object key) {
-            return (V)exec(new StoreTx<K, V>(name, StoreTx.Operation.REMOVE, (K) key));
+            return copyForRead((V)exec(new StoreTx<K, V>(name, StoreTx.Operation.REMOVE, (K) key)));
         }
 
         public boolean remove(Object key, Object value) {
@@ -381,13 +824,20 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
         }
 
         public V replace(K key, V value) {
-            return (V)exec(new StoreTx<K, V>(name, StoreTx.Operation.REPLACE, key, value));
+            return copyForRead((V)exec(new StoreTx<K, V>(name, StoreTx.Operation.REPLACE, key, value)));
         }
 
         public boolean replace(K key, V oldValue, V newValue) {
             return (Boolean)exec(new StoreTx<K, V>(name, StoreTx.Operation.REPLACE_KVV, key, newValue, oldValue));
         }
 
+        public V compute(K key, String fn, Object arg) {
+            if (!updateFunctions.containsKey(fn)) {
+                throw new KeyValueStoreException("Unknown update function [" + fn + "]");
+            }
+            return copyForRead((V)exec(StoreTx.<K, V>compute(name, key, fn, arg)));
+        }
+
         public void putAll(Map<? extends K, ? extends V> m) {
             for (Entry<? extends K, ? extends V> e : m.entrySet()) put(e.getKey(), e.getValue());
         }
@@ -421,7 +871,7 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
 
         public V get(Object key) {
             ConcurrentMap<K, V> m = maps.get(name);
-            return m == null ? null : m.get(key);
+            return m == null ? null : copyForRead(m.get(key));
         }
 
         public Set<K> keySet() {
@@ -431,13 +881,21 @@ public class KeyValueStoreImpl<K, V> implements KeyValueStore<K, V> {
 
         public Collection<V> values() {
             ConcurrentMap<K, V> m = maps.get(name);
-            return m == null ? Collections.EMPTY_LIST : m.values();
+            if (m == null) return Collections.EMPTY_LIST;
+            return readCopier == null ? m.values() : Collections2.transform(m.values(), readFunction);
         }
 
         public Set<Entry<K, V>> entrySet() {
             ConcurrentMap<K, V> m = maps.get(name);
-            return m == null ? Collections.EMPTY_SET : m.entrySet();
+            if (m == null) return Collections.EMPTY_SET;
+            return readCopier == null ? m.entrySet() : Maps.transformValues(m, readFunction).entrySet();
         }
+
+        private final Function<V, V> readFunction = new Function<V, V>() {
+            public V apply(V value) {
+                return copyForRead(value);
+            }
+        };
     }
 
 }
@@ -0,0 +1,308 @@
+package io.qdb.kvstore;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filters, projects and aggregates the entries in a map in parallel. The keys and values are copied from the map
+ * (optionally while holding the store lock so the query sees a consistent view) and then split into slices which
+ * are processed concurrently on the store's query thread pool. Predicates and functions must be thread safe and
+ * must not modify the values passed to them. Get instances using {@link KeyValueMap#query()}.
+ */
+public class MapQuery<K, V> {
+
+    /** Supplies the keys and values of a map. */
+    interface Source<K, V> {
+        /**
+         * Add the keys and values to the lists. If consistent is true then no changes may be made to the map
+         * while this is happening.
+         */
+        void collect(boolean consistent, List<K> keys, List<V> values);
+    }
+
+    private final Source<K, V> source;
+    private final ExecutorService pool;
+    private final int parallelism;
+    private final Function<V, V> copier;
+    private final List<Predicate<? super Map.Entry<K, V>>> predicates =
+            new ArrayList<Predicate<? super Map.Entry<K, V>>>();
+    private long limit = Long.MAX_VALUE;
+    private boolean consistent;
+
+    MapQuery(Source<K, V> source, ExecutorService pool, int parallelism, Function<V, V> copier) {
+        this.source = source;
+        this.pool = pool;
+        this.parallelism = parallelism;
+        this.copier = copier;
+    }
+
+    /**
+     * Only include entries matching predicate. If this is called more than once all predicates must match.
+     */
+    public MapQuery<K, V> where(Predicate<? super Map.Entry<K, V>> predicate) {
+        predicates.add(predicate);
+        return this;
+    }
+
+    /**
+     * Stop once this many matching entries have been found. Note that which entries are included is not defined
+     * except for {@link #top(int, java.util.Comparator)} which ranks all the matching entries and then returns at
+     * most this many.
+     */
+    public MapQuery<K, V> limit(long limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Should the map be locked while its keys and values are copied so the query sees a consistent view?
+     * Default is false. This blocks writes to the store for the time it takes to copy the references so only use
+     * it when the query must not see some changes from a transaction and not others (e.g. when summing balances).
+     */
+    public MapQuery<K, V> consistent(boolean consistent) {
+        this.consistent = consistent;
+        return this;
+    }
+
+    /**
+     * Count the matching entries.
+     */
+    public long count() {
+        return run(new Job<long[]>() {
+            long[] create() { return new long[1]; }
+            void add(long[] acc, Map.Entry<K, V> e) { ++acc[0]; }
+            long[] merge(long[] a, long[] b) { a[0] += b[0]; return a; }
+        })[0];
+    }
+
+    /**
+     * Get the matching entries.
+     */
+    public List<Map.Entry<K, V>> list() {
+        List<Map.Entry<K, V>> ans = run(new Job<List<Map.Entry<K, V>>>() {
+            List<Map.Entry<K, V>> create() { return new ArrayList<Map.Entry<K, V>>(); }
+            void add(List<Map.Entry<K, V>> acc, Map.Entry<K, V> e) { acc.add(e); }
+            List<Map.Entry<K, V>> merge(List<Map.Entry<K, V>> a, List<Map.Entry<K, V>> b) { a.addAll(b); return a; }
+        });
+        return copyValues(trim(ans));
+    }
+
+    /**
+     * Apply projection to the matching entries and return the results.
+     */
+    public <T> List<T> select(final Function<? super Map.Entry<K, V>, T> projection) {
+        return trim(run(new Job<List<T>>() {
+            List<T> create() { return new ArrayList<T>(); }
+            void add(List<T> acc, Map.Entry<K, V> e) { acc.add(projection.apply(e)); }
+            List<T> merge(List<T> a, List<T> b) { a.addAll(b); return a; }
+        }));
+    }
+
+    /**
+     * Sum the numbers returned by value for the matching entries. Nulls are ignored.
+     */
+    public double sum(final Function<? super Map.Entry<K, V>, ? extends Number> value) {
+        return run(new Job<double[]>() {
+            double[] create() { return new double[1]; }
+            void add(double[] acc, Map.Entry<K, V> e) {
+                Number n = value.apply(e);
+                if (n != null) acc[0] += n.doubleValue();
+            }
+            double[] merge(double[] a, double[] b) { a[0] += b[0]; return a; }
+        })[0];
+    }
+
+    /**
+     * Count the matching entries in each group returned by group.
+     */
+    public <G> Map<G, Long> countBy(final Function<? super Map.Entry<K, V>, G> group) {
+        return run(new Job<Map<G, Long>>() {
+            Map<G, Long> create() { return new HashMap<G, Long>(); }
+            void add(Map<G, Long> acc, Map.Entry<K, V> e) { addTo(acc, group.apply(e), 1L); }
+            Map<G, Long> merge(Map<G, Long> a, Map<G, Long> b) {
+                for (Map.Entry<G, Long> e : b.entrySet()) addTo(a, e.getKey(), e.getValue());
+                return a;
+            }
+            void addTo(Map<G, Long> acc, G g, long n) {
+                Long c = acc.get(g);
+                acc.put(g, c == null ? n : c + n);
+            }
+        });
+    }
+
+    /**
+     * Sum the numbers returned by value for the matching entries in each group returned by group.
+     */
+    public <G> Map<G, Double> sumBy(final Function<? super Map.Entry<K, V>, G> group,
+                                    final Function<? super Map.Entry<K, V>, ? extends Number> value) {
+        return run(new Job<Map<G, Double>>() {
+            Map<G, Double> create() { return new HashMap<G, Double>(); }
+            void add(Map<G, Double> acc, Map.Entry<K, V> e) {
+                Number n = value.apply(e);
+                if (n != null) addTo(acc, group.apply(e), n.doubleValue());
+            }
+            Map<G, Double> merge(Map<G, Double> a, Map<G, Double> b) {
+                for (Map.Entry<G, Double> e : b.entrySet()) addTo(a, e.getKey(), e.getValue());
+                return a;
+            }
+            void addTo(Map<G, Double> acc, G g, double n) {
+                Double c = acc.get(g);
+                acc.put(g, c == null ? n : c + n);
+            }
+        });
+    }
+
+    /**
+     * Get the first k matching entries in the order defined by comparator. All matching entries are ranked and
+     * then the results are trimmed to {@link #limit(long)}.
+     */
+    public List<Map.Entry<K, V>> top(final int k, final Comparator<? super Map.Entry<K, V>> comparator) {
+        final Comparator<Map.Entry<K, V>> reverse = new Comparator<Map.Entry<K, V>>() {
+            public int compare(Map.Entry<K, V> a, Map.Entry<K, V> b) {
+                return comparator.compare(b, a);
+            }
+        };
+        PriorityQueue<Map.Entry<K, V>> q = run(new Job<PriorityQueue<Map.Entry<K, V>>>() {
+            PriorityQueue<Map.Entry<K, V>> create() {
+                // head of the queue is the worst entry so far
+                return new PriorityQueue<Map.Entry<K, V>>(k + 1, reverse);
+            }
+            void add(PriorityQueue<Map.Entry<K, V>> acc, Map.Entry<K, V> e) {
+                if (acc.size() < k) {
+                    acc.add(e);
+                } else if (k > 0 && comparator.compare(e, acc.peek()) < 0) {
+                    acc.poll();
+                    acc.add(e);
+                }
+            }
+            PriorityQueue<Map.Entry<K, V>> merge(PriorityQueue<Map.Entry<K, V>> a,
+                                                 PriorityQueue<Map.Entry<K, V>> b) {
+                for (Map.Entry<K, V> e : b) add(a, e);
+                return a;
+            }
+        }, false);
+        List<Map.Entry<K, V>> ans = new ArrayList<Map.Entry<K, V>>(q);
+        Collections.sort(ans, comparator);
+        return copyValues(trim(ans));
+    }
+
+    private <T> List<T> trim(List<T> list) {
+        return list.size() > limit ? new ArrayList<T>(list.subList(0, (int)limit)) : list;
+    }
+
+    private List<Map.Entry<K, V>> copyValues(List<Map.Entry<K, V>> list) {
+        if (copier == null) return list;
+        for (int i = 0; i < list.size(); i++) {
+            Map.Entry<K, V> e = list.get(i);
+            list.set(i, new AbstractMap.SimpleImmutableEntry<K, V>(e.getKey(), copier.apply(e.getValue())));
+        }
+        return list;
+    }
+
+    /**
+     * Accumulates results for a slice of the entries and merges results from different slices.
+     */
+    private abstract class Job<R> {
+        abstract R create();
+        abstract void add(R acc, Map.Entry<K, V> e);
+        abstract R merge(R a, R b);
+    }
+
+    private <R> R run(Job<R> job) {
+        return run(job, true);
+    }
+
+    /**
+     * If stopEarly is true then slices stop adding entries to their results once limit matching entries have been
+     * found overall.
+     */
+    private <R> R run(final Job<R> job, boolean stopEarly) {
+        final List<K> keys = new ArrayList<K>();
+        final List<V> values = new ArrayList<V>();
+        source.collect(consistent, keys, values);
+
+        final int n = keys.size();
+        if (n == 0) return job.create();
+        int slices = Math.min(Math.max(parallelism * 4, 1), Math.max(n / 1000, 1));
+        final int sliceSize = (n + slices - 1) / slices;
+        final long stopAfter = stopEarly ? limit : Long.MAX_VALUE;
+        final AtomicLong matched = new AtomicLong();
+
+        List<Future<R>> futures = new ArrayList<Future<R>>(slices);
+        for (int start = 0; start < n; start += sliceSize) {
+            final int from = start;
+            final int to = Math.min(start + sliceSize, n);
+            Callable<R> task = new Callable<R>() {
+                public R call() {
+                    R acc = job.create();
+                    for (int i = from; i < to; i++) {
+                        Map.Entry<K, V> e = new AbstractMap.SimpleImmutableEntry<K, V>(keys.get(i), values.get(i));
+                        if (!matches(e)) continue;
+                        // stop early once enough entries have been found
+                        if (stopAfter < Long.MAX_VALUE && matched.incrementAndGet() > stopAfter) break;
+                        job.add(acc, e);
+                    }
+                    return acc;
+                }
+            };
+            futures.add(slices == 1 ? new CompletedFuture<R>(task) : pool.submit(task));
+        }
+
+        R ans = null;
+        try {
+            for (Future<R> f : futures) {
+                R r = f.get();
+                ans = ans == null ? r : job.merge(ans, r);
+            }
+        } catch (InterruptedException e) {
+            for (Future<R> f : futures) f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new KeyValueStoreException("Query interrupted", e);
+        } catch (ExecutionException e) {
+            for (Future<R> f : futures) f.cancel(true);
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) throw (RuntimeException)t;
+            throw new KeyValueStoreException(t.toString(), t);
+        }
+        return ans;
+    }
+
+    private boolean matches(Map.Entry<K, V> e) {
+        for (Predicate<? super Map.Entry<K, V>> p : predicates) if (!p.apply(e)) return false;
+        return true;
+    }
+
+    /**
+     * Runs small queries on the calling thread.
+     */
+    private static class CompletedFuture<R> implements Future<R> {
+
+        private R result;
+        private ExecutionException error;
+
+        CompletedFuture(Callable<R> task) {
+            try {
+                result = task.call();
+            } catch (Exception e) {
+                error = new ExecutionException(e);
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) { return false; }
+        public boolean isCancelled() { return false; }
+        public boolean isDone() { return true; }
+
+        public R get() throws ExecutionException {
+            if (error != null) throw error;
+            return result;
+        }
+
+        public R get(long timeout, TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+}
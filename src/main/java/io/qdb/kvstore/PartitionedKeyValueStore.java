@@ -0,0 +1,579 @@
+package io.qdb.kvstore;
+
+import com.google.common.collect.Iterators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spreads the objects in a store across several {@link KeyValueStoreImpl} partitions by hashing the map name and
+ * key. Each partition has its own directory, transaction log and snapshots so writes to different partitions do
+ * not contend and partitions can be placed on different disks. Partitions are opened and snapshotted in parallel.
+ * The partition directories are recorded in a "partitions" file in the main store directory. Keys must have
+ * hashCode implementations that are stable across JVMs (e.g. String, Integer, Long). Create these using
+ * {@link KeyValueStoreBuilder#partitions(int)} or {@link KeyValueStoreBuilder#partitionDirs(java.io.File...)}.
+ */
+public class PartitionedKeyValueStore<K, V> implements KeyValueStore<K, V> {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionedKeyValueStore.class);
+
+    private final Listener<K, V> listener;
+    private final FileLock lock;
+    private final List<KeyValueStoreImpl<K, V>> partitions;
+    private final ExecutorService pool;
+    private final int queryThreads;
+    private ExecutorService queryPool;
+
+    PartitionedKeyValueStore(KeyValueStoreBuilder<K, V> builder, File dir, int partitionCount, File[] partitionDirs,
+                             File snapshotDir, Listener<K, V> listener, int queryThreads, boolean readOnly)
+            throws IOException {
+        this.listener = listener;
+        this.queryThreads = queryThreads;
+
+        File[] dirs;
+        if (readOnly) {
+            // the partitions are opened read only so the process writing to the store is not affected
+            lock = null;
+            File f = new File(DirUtil.checkDirectory(dir), "partitions");
+            if (!f.exists()) throw new IOException(f + " not found");
+            dirs = readPartitionsFile(f);
+        } else {
+            dir = DirUtil.ensureDirectory(dir);
+            lock = DirUtil.lockDirectory(dir);
+            try {
+                dirs = getPartitionDirs(dir, partitionCount, partitionDirs);
+            } catch (IOException e) {
+                releaseLock();
+                throw e;
+            }
+        }
+
+        pool = Executors.newFixedThreadPool(dirs.length, new DaemonThreadFactory("kvstore-" + dir.getName()));
+        boolean ok = false;
+        try {
+            partitions = open(builder, dirs, snapshotDir);
+            ok = true;
+        } finally {
+            if (!ok) {
+                pool.shutdownNow();
+                releaseLock();
+            }
+        }
+    }
+
+    private void releaseLock() throws IOException {
+        if (lock != null) {
+            lock.release();
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * Is the store in dir partitioned?
+     */
+    static boolean isPartitioned(File dir) {
+        return new File(dir, "partitions").exists();
+    }
+
+    /**
+     * Read the partition directories from dir/partitions or create the file if it does not exist. If it does
+     * exist then partitionCount and partitionDirs (if specified) must match it.
+     */
+    private static File[] getPartitionDirs(File dir, int partitionCount, File[] partitionDirs) throws IOException {
+        File f = new File(dir, "partitions");
+        if (f.exists()) {
+            File[] dirs = readPartitionsFile(f);
+            if (partitionDirs != null && !Arrays.equals(dirs, absolute(partitionDirs))
+                    || partitionCount > 1 && partitionCount != dirs.length) {
+                throw new IOException(dir + " has partitions " + Arrays.asList(dirs) + ", use repartition to change");
+            }
+            return dirs;
+        }
+        File[] dirs;
+        if (partitionDirs != null) {
+            dirs = absolute(partitionDirs);
+        } else {
+            dirs = new File[partitionCount];
+            for (int i = 0; i < partitionCount; i++) dirs[i] = new File(dir, "p" + i);
+        }
+        writePartitionsFile(f, dirs);
+        return dirs;
+    }
+
+    private static File[] absolute(File[] dirs) {
+        File[] a = new File[dirs.length];
+        for (int i = 0; i < dirs.length; i++) a[i] = dirs[i].getAbsoluteFile();
+        return a;
+    }
+
+    static File[] readPartitionsFile(File f) throws IOException {
+        List<File> dirs = new ArrayList<File>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.length() > 0) dirs.add(new File(line));
+            }
+        } finally {
+            r.close();
+        }
+        return dirs.toArray(new File[dirs.size()]);
+    }
+
+    private static void writePartitionsFile(File f, File[] dirs) throws IOException {
+        File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            Writer w = new OutputStreamWriter(out, "UTF8");
+            for (File d : dirs) w.write(d.getAbsolutePath() + "\n");
+            w.flush();
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        if (f.exists() && !f.delete()) throw new IOException("Unable to delete " + f);
+        if (!tmp.renameTo(f)) throw new IOException("Unable to rename " + tmp + " to " + f);
+    }
+
+    private List<KeyValueStoreImpl<K, V>> open(final KeyValueStoreBuilder<K, V> builder, File[] dirs,
+                                               final File snapshotDir) throws IOException {
+        final Listener<K, V> pl = listener == null ? null : new PartitionListener();
+        List<Future<KeyValueStoreImpl<K, V>>> futures = new ArrayList<Future<KeyValueStoreImpl<K, V>>>();
+        for (int i = 0; i < dirs.length; i++) {
+            final File d = dirs[i];
+            final File sd = snapshotDir == null ? null : new File(snapshotDir, "p" + i);
+            futures.add(pool.submit(new Callable<KeyValueStoreImpl<K, V>>() {
+                public KeyValueStoreImpl<K, V> call() throws IOException {
+                    return builder.createPartition(d, sd, pl);
+                }
+            }));
+        }
+        List<KeyValueStoreImpl<K, V>> ans = new ArrayList<KeyValueStoreImpl<K, V>>();
+        IOException error = null;
+        for (Future<KeyValueStoreImpl<K, V>> f : futures) {
+            try {
+                ans.add(f.get());
+            } catch (Exception e) {
+                if (error == null) error = toIOException(e);
+            }
+        }
+        if (error != null) {
+            for (KeyValueStoreImpl<K, V> p : ans) {
+                try {
+                    p.close();
+                } catch (IOException e) {
+                    log.error("Error closing " + p + ": " + e, e);
+                }
+            }
+            throw error;
+        }
+        return ans;
+    }
+
+    private static IOException toIOException(Exception e) {
+        Throwable t = e instanceof ExecutionException ? e.getCause() : e;
+        if (t instanceof IOException) return (IOException)t;
+        return new IOException(t.toString(), t);
+    }
+
+    /**
+     * Get the partitions of this store.
+     */
+    public List<KeyValueStoreImpl<K, V>> getPartitions() {
+        return Collections.unmodifiableList(partitions);
+    }
+
+    /**
+     * Get the partition that holds key in map.
+     */
+    KeyValueStoreImpl<K, V> getPartition(String map, Object key) {
+        return partitions.get(partitionFor(map, key, partitions.size()));
+    }
+
+    static int partitionFor(String map, Object key, int partitionCount) {
+        int h = map.hashCode() * 31 + key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & 0x7fffffff) % partitionCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (KeyValueStoreImpl<K, V> p : partitions) {
+            try {
+                p.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        pool.shutdownNow();
+        synchronized (this) {
+            if (queryPool != null) queryPool.shutdownNow();
+        }
+        releaseLock();
+        if (error != null) throw error;
+    }
+
+    /**
+     * Save snapshots of all partitions in parallel.
+     */
+    @Override
+    public void saveSnapshot() throws IOException {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (final KeyValueStoreImpl<K, V> p : partitions) {
+            futures.add(pool.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    p.saveSnapshot();
+                    return null;
+                }
+            }));
+        }
+        IOException error = null;
+        for (Future<Object> f : futures) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                if (error == null) error = toIOException(e);
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (KeyValueStoreImpl<K, V> p : partitions) if (!p.isEmpty()) return false;
+        return true;
+    }
+
+    /**
+     * Returns the highest write pressure of any partition.
+     */
+    @Override
+    public double getWritePressure() {
+        double max = 0.0;
+        for (KeyValueStoreImpl<K, V> p : partitions) max = Math.max(max, p.getWritePressure());
+        return max;
+    }
+
+    @Override
+    public List<String> getMapNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (KeyValueStoreImpl<K, V> p : partitions) names.addAll(p.getMapNames());
+        return new ArrayList<String>(names);
+    }
+
+    @Override
+    public KeyValueMap<K, V> getMap(String name) {
+        return new PartitionedMap(name, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends V> KeyValueMap<K, T> getMap(String name, Class<T> cls) {
+        return (KeyValueMap<K, T>)getMap(name);
+    }
+
+    private synchronized ExecutorService getQueryPool() {
+        if (queryPool == null) {
+            queryPool = Executors.newFixedThreadPool(queryThreads, new DaemonThreadFactory("kvstore-query"));
+        }
+        return queryPool;
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionedKeyValueStore" + partitions;
+    }
+
+    /**
+     * Re-distributes the objects in the store created by builder across new partition directories which must be
+     * empty (or not exist). The store must not be in use: its directories are locked while it is read. The store is
+     * opened read only so nothing in the old directories is changed (apart from the partitions file which is
+     * replaced) and they can be deleted once the new layout has been checked. If the builder has a snapshotDir
+     * then the partitions read their snapshots from snapshotDir/p&lt;i&gt; so the new snapshots are written there and
+     * the snapshots of the old partitions in those directories are deleted once the partitions file is replaced.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> void repartition(KeyValueStoreBuilder<K, V> builder, File... newDirs) throws IOException {
+        newDirs = absolute(newDirs);
+        for (File d : newDirs) {
+            String[] files = d.list();
+            if (files != null && files.length > 0) throw new IOException(d + " is not empty");
+        }
+
+        File dir = DirUtil.checkDirectory(builder.getDir());
+        List<File> lockDirs = new ArrayList<File>();
+        lockDirs.add(dir);
+        if (isPartitioned(dir)) lockDirs.addAll(Arrays.asList(readPartitionsFile(new File(dir, "partitions"))));
+        List<FileLock> locks = new ArrayList<FileLock>();
+        List<Map<String, Map<K, V>>> snapshots = new ArrayList<Map<String, Map<K, V>>>();
+        try {
+            for (File d : lockDirs) locks.add(DirUtil.lockDirectory(d));
+            KeyValueStore<K, V> store = builder.openReadOnly();
+            try {
+                for (File ignored : newDirs) snapshots.add(new HashMap<String, Map<K, V>>());
+                for (String name : store.getMapNames()) {
+                    for (Map.Entry<K, V> e : store.getMap(name).entrySet()) {
+                        Map<String, Map<K, V>> snapshot =
+                                snapshots.get(partitionFor(name, e.getKey(), newDirs.length));
+                        Map<K, V> m = snapshot.get(name);
+                        if (m == null) snapshot.put(name, m = new HashMap<K, V>());
+                        m.put(e.getKey(), e.getValue());
+                    }
+                }
+            } finally {
+                store.close();
+            }
+        } finally {
+            for (FileLock lock : locks) {
+                lock.release();
+                lock.channel().close();
+            }
+        }
+
+        KeyValueStoreSerializer serializer = builder.getSerializer();
+        File snapshotDir = builder.getSnapshotDir();
+        for (int i = 0; i < newDirs.length; i++) {
+            File d = DirUtil.ensureDirectory(newDirs[i]);
+            // use a non-zero id so the partition uses it as the first id for its empty tx log
+            if (snapshotDir == null) {
+                SnapshotFile.write(serializer, snapshots.get(i), SnapshotFile.forId(d, 1));
+            } else {
+                // the old partitions may still need the snapshots in snapshotDir/p<i> so stage it next to them
+                SnapshotFile.write(serializer, snapshots.get(i), getStagedSnapshot(snapshotDir, i));
+            }
+        }
+
+        File[] oldDirs = isPartitioned(dir) ? readPartitionsFile(new File(dir, "partitions")) : new File[0];
+        writePartitionsFile(new File(dir, "partitions"), newDirs);
+        if (snapshotDir != null) replaceSnapshots(snapshotDir, newDirs.length);
+        log.info("Repartitioned " + dir + " from " + Arrays.asList(oldDirs) + " to " + Arrays.asList(newDirs));
+    }
+
+    private static File getStagedSnapshot(File snapshotDir, int partition) throws IOException {
+        File d = DirUtil.ensureDirectory(new File(snapshotDir, "p" + partition));
+        return new File(d, SnapshotFile.forId(d, 1).getName() + ".new");
+    }
+
+    /**
+     * Delete the snapshots of the old partitions from snapshotDir/p&lt;i&gt; and move the staged snapshots of the
+     * new partitions into place.
+     */
+    private static void replaceSnapshots(File snapshotDir, int partitionCount) throws IOException {
+        File[] dirs = snapshotDir.listFiles(new RegexFilenameFilter("p[0-9]+"));
+        if (dirs != null) {
+            for (File d : dirs) {
+                for (File f : SnapshotFile.list(d)) {
+                    if (!f.delete()) throw new IOException("Unable to delete " + f);
+                }
+            }
+        }
+        for (int i = 0; i < partitionCount; i++) {
+            File staged = getStagedSnapshot(snapshotDir, i);
+            File f = SnapshotFile.forId(staged.getParentFile(), 1);
+            if (!staged.renameTo(f)) throw new IOException("Unable to rename " + staged + " to " + f);
+        }
+    }
+
+    /**
+     * Change the number of partitions of a store directory offline.
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<String>();
+        KeyValueStoreBuilder<Object, Object> b = new KeyValueStoreBuilder<Object, Object>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--alias".equals(a)) {
+                String[] ac = args[++i].split("=");
+                b.alias(ac[0], Class.forName(ac[1]));
+            } else if ("--version-provider".equals(a)) {
+                b.versionProvider((VersionProvider<Object>)Class.forName(args[++i]).getDeclaredConstructor()
+                        .newInstance());
+            } else if ("--snapshot-dir".equals(a)) {
+                b.snapshotDir(new File(args[++i]));
+            } else {
+                rest.add(a);
+            }
+        }
+        if (rest.size() < 2) {
+            System.err.println("Usage: PartitionedKeyValueStore [options] <store dir> <new partition dir>...\n" +
+                    "Options:\n" +
+                    "  --alias <alias>=<class>       Class alias used by the store (repeat as needed)\n" +
+                    "  --version-provider <class>    Version provider used by the store\n" +
+                    "  --snapshot-dir <dir>          Separate snapshot directory used by the store");
+            System.exit(1);
+        }
+        File[] dirs = new File[rest.size() - 1];
+        for (int i = 0; i < dirs.length; i++) dirs[i] = new File(rest.get(i + 1));
+        repartition(b.dir(rest.get(0)), dirs);
+    }
+
+    /**
+     * Passes on events from partitions as events from this store.
+     */
+    private class PartitionListener implements Listener<K, V> {
+        public void onObjectEvent(ObjectEvent<K, V> ev) {
+            listener.onObjectEvent(new ObjectEvent<K, V>(PartitionedKeyValueStore.this, ev.map, ev.type, ev.key,
+                    ev.value));
+        }
+    }
+
+    /**
+     * Routes single key operations to the partition for the key and combines the partitions for everything else.
+     */
+    @SuppressWarnings({"unchecked", "NullableProblems"})
+    public class PartitionedMap implements KeyValueMap<K, V> {
+
+        private final String name;
+        private final boolean lowPriority;
+
+        public PartitionedMap(String name, boolean lowPriority) {
+            this.name = name;
+            this.lowPriority = lowPriority;
+        }
+
+        public KeyValueMap<K, V> lowPriority() {
+            return lowPriority ? this : new PartitionedMap(name, true);
+        }
+
+        private KeyValueMap<K, V> mapFor(Object key) {
+            return partitionMap(getPartition(name, key));
+        }
+
+        private KeyValueMap<K, V> partitionMap(KeyValueStoreImpl<K, V> p) {
+            KeyValueMap<K, V> m = p.getMap(name);
+            return lowPriority ? m.lowPriority() : m;
+        }
+
+        /**
+         * Partitions are locked one at a time while their entries are collected so the query sees a consistent
+         * view of each partition but not necessarily of the whole map.
+         */
+        public MapQuery<K, V> query() {
+            // all the partitions are created by the same builder so they copy values in the same way
+            return new MapQuery<K, V>(new MapQuery.Source<K, V>() {
+                public void collect(boolean consistent, List<K> keys, List<V> values) {
+                    for (KeyValueStoreImpl<K, V> p : partitions) p.collect(name, consistent, keys, values);
+                }
+            }, getQueryPool(), queryThreads, partitions.get(0).getReadFunction(name));
+        }
+
+        public V putIfAbsent(K key, V value) {
+            return mapFor(key).putIfAbsent(key, value);
+        }
+
+        public boolean remove(Object key, Object value) {
+            return mapFor(key).remove(key, value);
+        }
+
+        public boolean replace(K key, V oldValue, V newValue) {
+            return mapFor(key).replace(key, oldValue, newValue);
+        }
+
+        public V replace(K key, V value) {
+            return mapFor(key).replace(key, value);
+        }
+
+        public int size() {
+            int sz = 0;
+            for (KeyValueStoreImpl<K, V> p : partitions) sz += p.getMap(name).size();
+            return sz;
+        }
+
+        public boolean isEmpty() {
+            for (KeyValueStoreImpl<K, V> p : partitions) if (!p.getMap(name).isEmpty()) return false;
+            return true;
+        }
+
+        public boolean containsKey(Object key) {
+            return mapFor(key).containsKey(key);
+        }
+
+        public boolean containsValue(Object value) {
+            for (KeyValueStoreImpl<K, V> p : partitions) if (p.getMap(name).containsValue(value)) return true;
+            return false;
+        }
+
+        public V get(Object key) {
+            return mapFor(key).get(key);
+        }
+
+        public V put(K key, V value) {
+            return mapFor(key).put(key, value);
+        }
+
+        public V compute(K key, String fn, Object arg) {
+            return mapFor(key).compute(key, fn, arg);
+        }
+
+        public V remove(Object key) {
+            return mapFor(key).remove(key);
+        }
+
+        public void putAll(Map<? extends K, ? extends V> m) {
+            for (Entry<? extends K, ? extends V> e : m.entrySet()) put(e.getKey(), e.getValue());
+        }
+
+        public void clear() {
+            for (KeyValueStoreImpl<K, V> p : partitions) partitionMap(p).clear();
+        }
+
+        public Set<K> keySet() {
+            return new AbstractSet<K>() {
+                public Iterator<K> iterator() {
+                    List<Iterator<K>> list = new ArrayList<Iterator<K>>();
+                    for (KeyValueStoreImpl<K, V> p : partitions) list.add(p.getMap(name).keySet().iterator());
+                    return Iterators.concat(list.iterator());
+                }
+
+                public int size() {
+                    return PartitionedMap.this.size();
+                }
+
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+            };
+        }
+
+        public Collection<V> values() {
+            return new AbstractCollection<V>() {
+                public Iterator<V> iterator() {
+                    List<Iterator<V>> list = new ArrayList<Iterator<V>>();
+                    for (KeyValueStoreImpl<K, V> p : partitions) list.add(p.getMap(name).values().iterator());
+                    return Iterators.concat(list.iterator());
+                }
+
+                public int size() {
+                    return PartitionedMap.this.size();
+                }
+            };
+        }
+
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                public Iterator<Entry<K, V>> iterator() {
+                    List<Iterator<Entry<K, V>>> list = new ArrayList<Iterator<Entry<K, V>>>();
+                    for (KeyValueStoreImpl<K, V> p : partitions) list.add(p.getMap(name).entrySet().iterator());
+                    return Iterators.concat(list.iterator());
+                }
+
+                public int size() {
+                    return PartitionedMap.this.size();
+                }
+
+                public boolean contains(Object o) {
+                    if (!(o instanceof Entry)) return false;
+                    Entry<?, ?> e = (Entry<?, ?>)o;
+                    return mapFor(e.getKey()).entrySet().contains(e);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.qdb.kvstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened when a store was opened: which snapshot was loaded, how much of the tx log was replayed and
+ * exactly what was skipped. A store that was shut down cleanly will have a lossless report.
+ *
+ * @see KeyValueStoreImpl#getRecoveryReport()
+ */
+public class RecoveryReport {
+
+    File snapshot;
+    int snapshotChunks;
+    long snapshotEntries;
+    long snapshotBytesLost;
+    String snapshotError;
+    long replayFromId;
+    long replayToId;
+    long logGapBytes;
+    int replayed;
+    final List<String> rejectedSnapshots = new ArrayList<String>();
+    final List<Long> skippedTxIds = new ArrayList<Long>();
+    final List<Long> failedComputeTxIds = new ArrayList<Long>();
+
+    RecoveryReport() { }
+
+    /**
+     * Get the snapshot that was loaded or null if none.
+     */
+    public File getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * How many entries were loaded from the snapshot?
+     */
+    public long getSnapshotEntries() {
+        return snapshotEntries;
+    }
+
+    /**
+     * How many chunks were loaded from the snapshot? This is 0 for snapshots written before chunks were introduced.
+     */
+    public int getSnapshotChunks() {
+        return snapshotChunks;
+    }
+
+    /**
+     * How many bytes at the end of the snapshot were damaged and could not be read?
+     */
+    public long getSnapshotBytesLost() {
+        return snapshotBytesLost;
+    }
+
+    /**
+     * Why the snapshot could not be read completely (or why none could be loaded) or null if it was.
+     */
+    public String getSnapshotError() {
+        return snapshotError;
+    }
+
+    /**
+     * Get the id of the first tx log record that was replayed.
+     */
+    public long getReplayFromId() {
+        return replayFromId;
+    }
+
+    /**
+     * Get the id of the next tx log record after replay.
+     */
+    public long getReplayToId() {
+        return replayToId;
+    }
+
+    /**
+     * How many transactions were replayed from the tx log?
+     */
+    public int getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * How many bytes of transactions are missing between the snapshot and the oldest record in the tx log?
+     */
+    public long getLogGapBytes() {
+        return logGapBytes;
+    }
+
+    /**
+     * Get the snapshots that were not used with the reasons why.
+     */
+    public List<String> getRejectedSnapshots() {
+        return Collections.unmodifiableList(rejectedSnapshots);
+    }
+
+    /**
+     * Get the ids of tx log records that could not be read and were skipped.
+     */
+    public List<Long> getSkippedTxIds() {
+        return Collections.unmodifiableList(skippedTxIds);
+    }
+
+    /**
+     * Get the ids of COMPUTE records whose update function threw an exception when replayed. The function also
+     * failed when the tx was first run unless it is not deterministic.
+     */
+    public List<Long> getFailedComputeTxIds() {
+        return Collections.unmodifiableList(failedComputeTxIds);
+    }
+
+    /**
+     * Was the store recovered without losing any data?
+     */
+    public boolean isLossless() {
+        return snapshotError == null && logGapBytes == 0 && skippedTxIds.isEmpty();
+    }
+
+    /**
+     * Was anything recovered? This is false if snapshots were rejected and none was loaded or if every tx log
+     * record replayed was skipped. A new snapshot is not taken straight away after a lossy recovery unless this
+     * is true so the damaged files are still there to be examined.
+     */
+    public boolean hasRecoveredData() {
+        if (snapshot == null && !rejectedSnapshots.isEmpty()) return false;
+        return !(replayed == 0 && !skippedTxIds.isEmpty());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        if (snapshot == null) {
+            b.append("no snapshot");
+            if (snapshotError != null) b.append(" (").append(snapshotError).append(")");
+        } else {
+            b.append("snapshot ").append(snapshot.getName()).append(" (").append(snapshotEntries).append(" entries");
+            if (snapshotError != null) {
+                b.append(", salvaged ").append(snapshotChunks).append(" chunk(s), lost ").append(snapshotBytesLost)
+                        .append(" byte(s): ").append(snapshotError);
+            }
+            b.append(")");
+        }
+        b.append(", replayed ").append(replayed).append(" tx(s) from ").append(Long.toHexString(replayFromId))
+                .append(" to ").append(Long.toHexString(replayToId));
+        if (logGapBytes > 0) b.append(", ").append(logGapBytes).append(" byte(s) of tx log missing");
+        if (!skippedTxIds.isEmpty()) {
+            b.append(", skipped ").append(skippedTxIds.size()).append(" unreadable tx(s):");
+            for (Long id : skippedTxIds) b.append(' ').append(Long.toHexString(id));
+        }
+        if (!failedComputeTxIds.isEmpty()) {
+            b.append(", update function failed for ").append(failedComputeTxIds.size()).append(" tx(s):");
+            for (Long id : failedComputeTxIds) b.append(' ').append(Long.toHexString(id));
+        }
+        for (String s : rejectedSnapshots) b.append("\nrejected ").append(s);
+        return b.toString();
+    }
+}
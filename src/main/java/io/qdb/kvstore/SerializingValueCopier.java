@@ -0,0 +1,29 @@
+package io.qdb.kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Copies values by serializing and de-serializing them. This is much slower than {@link FieldValueCopier} but
+ * works for anything the serializer can handle.
+ */
+public class SerializingValueCopier<V> implements KeyValueStore.ValueCopier<V> {
+
+    private final KeyValueStoreSerializer serializer;
+
+    public SerializingValueCopier(KeyValueStoreSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V copy(V value) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            serializer.serialize(value, false, bos);
+            return (V)serializer.deserialize(new ByteArrayInputStream(bos.toByteArray()), value.getClass());
+        } catch (IOException e) {
+            throw new KeyValueStoreException("Error copying " + value + ": " + e, e);
+        }
+    }
+}
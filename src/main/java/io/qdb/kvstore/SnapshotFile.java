@@ -0,0 +1,511 @@
+package io.qdb.kvstore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Static utility methods for locating, reading and writing snapshot files. Snapshots are named after the id of
+ * the next transaction in the tx log when they were taken (16 hex digits).
+ * <p>
+ * Snapshots are written in chunks of up to {@link #CHUNK_ENTRIES} entries. Each chunk is a serialized map of maps
+ * that can be read on its own and is protected by a CRC-32 so a damaged file can be salvaged up to the last good
+ * chunk. Format: magic, dictionary length (int), dictionary then chunks of type (byte), raw length (int), stored
+ * length (int), CRC-32 of the stored bytes (int) and the stored bytes (plain or a zlib stream). The end marker is
+ * type 0 followed by the number of chunks (int) and entries (long). Snapshots written as a single plain JSON
+ * document before chunks were introduced can still be read but cannot be salvaged.
+ * <p>
+ * Snapshots can be written and read one chunk at a time (see {@link ChunkWriter} and {@link ChunkHandler}) so
+ * tools that process whole stores do not need to hold them in memory.
+ */
+class SnapshotFile {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotFile.class);
+
+    static final byte[] MAGIC = new byte[]{'Q', 'K', 'S', '2'};
+    static final int CHUNK_ENTRIES = 1000;
+
+    private static final int END = 0;
+    private static final int PLAIN = 1;
+    private static final int DEFLATED = 2;
+    private static final int CHUNK_HEADER_SIZE = 13;
+    private static final int MAX_CHUNK_SIZE = 1 << 28;
+
+    /**
+     * Get the snapshot files in dir, oldest first.
+     */
+    public static File[] list(File dir) {
+        File[] files = dir.listFiles(new RegexFilenameFilter("[0-9a-f]+\\.snapshot"));
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Get the file for snapshot id in dir.
+     */
+    public static File forId(File dir, long id) {
+        return new File(dir, String.format("%016x", id) + ".snapshot");
+    }
+
+    /**
+     * Extract the snapshot id from the name of f.
+     */
+    public static long getId(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(0, name.lastIndexOf('.')), 16);
+    }
+
+    /**
+     * Read a snapshot from in. Chunked and plain JSON snapshots are detected automatically. Throws an exception
+     * if any part of the snapshot is damaged.
+     */
+    public static <K, V> Map<String, Map<K, V>> read(KeyValueStoreSerializer serializer, InputStream in)
+            throws IOException {
+        return read(serializer, in, Long.MAX_VALUE);
+    }
+
+    private static <K, V> Map<String, Map<K, V>> read(KeyValueStoreSerializer serializer, InputStream in, long size)
+            throws IOException {
+        Contents<K, V> c = new Contents<K, V>();
+        read(serializer, in, size, c);
+        return c.getMaps();
+    }
+
+    /**
+     * Read the snapshot in passing each chunk to handler as it is read. Plain JSON snapshots are passed to the
+     * handler as a single chunk. Throws an exception if any part of the snapshot is damaged.
+     */
+    public static <K, V> void read(KeyValueStoreSerializer serializer, InputStream in, ChunkHandler<K, V> handler)
+            throws IOException {
+        read(serializer, in, Long.MAX_VALUE, handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void read(KeyValueStoreSerializer serializer, InputStream in, long size,
+                ChunkHandler<K, V> handler) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in);
+        if (isChunked(in)) {
+            readChunks(serializer, in, size, true, new Contents<K, V>(), handler);
+        } else {
+            handler.onChunk((Map<String, Map<K, V>>)serializer.deserialize(in, Map.class));
+        }
+    }
+
+    public static <K, V> Map<String, Map<K, V>> read(KeyValueStoreSerializer serializer, File f) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            return read(serializer, in, f.length());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Read as much of f as possible. Chunked snapshots are read up to the last chunk that passes its checksum.
+     * Plain JSON snapshots are all or nothing. Throws IOException if a chunk passes its checksum but cannot be
+     * deserialized as that is a configuration problem (e.g. a missing class alias) and not damage.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> Contents<K, V> salvage(KeyValueStoreSerializer serializer, File f) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            Contents<K, V> c = new Contents<K, V>();
+            if (isChunked(in)) return readChunks(serializer, in, f.length(), false, c, c);
+            try {
+                Map<String, Map<K, V>> maps = (Map<String, Map<K, V>>)serializer.deserialize(in, Map.class);
+                c.onChunk(maps);
+                for (Map<K, V> m : maps.values()) c.entries += m.size();
+                c.validBytes = f.length();
+                c.complete = true;
+            } catch (Exception e) {
+                c.error = e.toString();
+            }
+            return c;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static boolean isChunked(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) if (in.read() != (b & 0xff)) return false;
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Read the chunked snapshot in (size bytes long or Long.MAX_VALUE if not known) passing each chunk to handler
+     * and keeping track of progress in c. If strict is false then reading stops at the first damaged chunk and the
+     * reason is recorded in c.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Contents<K, V> readChunks(KeyValueStoreSerializer serializer, InputStream in, long size,
+                boolean strict, Contents<K, V> c, ChunkHandler<K, V> handler) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        Inflater inflater = new Inflater();
+        CRC32 crc = new CRC32();
+        try {
+            din.readFully(new byte[MAGIC.length]);
+            long pos = MAGIC.length + 4;
+            byte[] dictionary = new byte[checkLength(din.readInt(), pos, size, "dictionary")];
+            din.readFully(dictionary);
+            pos += dictionary.length;
+            c.validBytes = pos;
+            while (true) {
+                int type = din.read();
+                if (type == END) {
+                    int chunks = din.readInt();
+                    long entries = din.readLong();
+                    if (chunks != c.chunks || entries != c.entries) {
+                        throw new DamagedSnapshotException("Expected " + chunks + " chunk(s) with " + entries +
+                                " entries, read " + c.chunks + " with " + c.entries);
+                    }
+                    c.validBytes = pos + 1 + 4 + 8;
+                    c.complete = true;
+                    break;
+                }
+                if (type < 0) throw new EOFException();
+                if (type != PLAIN && type != DEFLATED) {
+                    throw new DamagedSnapshotException("Bad type " + type + " for chunk " + c.chunks + " at " + pos);
+                }
+                int rawLength = checkLength(din.readInt(), pos, Long.MAX_VALUE, "raw chunk");
+                int length = checkLength(din.readInt(), pos + CHUNK_HEADER_SIZE, size, "chunk");
+                int checksum = din.readInt();
+                byte[] stored = new byte[length];
+                din.readFully(stored);
+                crc.reset();
+                crc.update(stored);
+                if ((int)crc.getValue() != checksum) {
+                    throw new DamagedSnapshotException("Checksum mismatch for chunk " + c.chunks + " at " + pos);
+                }
+                if (type == PLAIN && rawLength != length) {
+                    throw new DamagedSnapshotException("Bad raw length for chunk " + c.chunks + " at " + pos);
+                }
+                byte[] raw = type == DEFLATED ? inflate(inflater, dictionary, stored, rawLength) : stored;
+                Map<String, Map<K, V>> chunk;
+                try {
+                    chunk = (Map<String, Map<K, V>>)serializer.deserialize(new ByteArrayInputStream(raw), Map.class);
+                } catch (Exception e) {
+                    throw new IOException("Error deserializing chunk " + c.chunks + " which passed its checksum: " +
+                            e, e);
+                }
+                handler.onChunk(chunk);
+                for (Map<K, V> m : chunk.values()) c.entries += m.size();
+                ++c.chunks;
+                pos += CHUNK_HEADER_SIZE + length;
+                c.validBytes = pos;
+            }
+        } catch (EOFException e) {
+            c.error = "Truncated after chunk " + c.chunks;
+        } catch (DamagedSnapshotException e) {
+            c.error = e.getMessage();
+        } finally {
+            inflater.end();
+        }
+        if (strict && c.error != null) throw new IOException(c.error);
+        return c;
+    }
+
+    /**
+     * Make sure a length read from a header at pos is sane so damaged files don't cause huge allocations.
+     */
+    private static int checkLength(int length, long pos, long size, String what) throws IOException {
+        if (length < 0 || length > MAX_CHUNK_SIZE || pos + length > size) {
+            throw new DamagedSnapshotException("Bad " + what + " length " + length + " at " + pos);
+        }
+        return length;
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] dictionary, byte[] stored, int rawLength)
+            throws IOException {
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(stored);
+        try {
+            int n = 0;
+            while (n < rawLength) {
+                int c = inflater.inflate(raw, n, rawLength - n);
+                if (c == 0) {
+                    if (inflater.needsDictionary()) inflater.setDictionary(dictionary);
+                    else if (inflater.finished() || inflater.needsInput()) break;
+                }
+                n += c;
+            }
+            if (n != rawLength) {
+                throw new DamagedSnapshotException("Chunk inflated to " + n + " bytes instead of " + rawLength);
+            }
+        } catch (DataFormatException e) {
+            throw new DamagedSnapshotException("Corrupt chunk: " + e);
+        }
+        return raw;
+    }
+
+    /**
+     * Write snapshot to f and force it to disk. If this fails nothing is left behind.
+     */
+    public static void write(KeyValueStoreSerializer serializer, Map<String, ? extends Map<?, ?>> snapshot, File f)
+            throws IOException {
+        write(serializer, snapshot, f, null);
+    }
+
+    /**
+     * Write snapshot to f at no more than rate (null for unlimited) and force it to disk. The snapshot is written to
+     * a temporary file and renamed so processes reading the directory never see a partial snapshot. If this fails
+     * the temporary file is deleted. Returns the size of the file.
+     */
+    public static long write(KeyValueStoreSerializer serializer, Map<String, ? extends Map<?, ?>> snapshot, File f,
+                             ThrottledOutputStream.Rate rate) throws IOException {
+        return write(serializer, snapshot, f, rate, 0, null);
+    }
+
+    /**
+     * Write snapshot to f in chunks as for {@link #write(KeyValueStoreSerializer, java.util.Map, java.io.File,
+     * io.qdb.kvstore.ThrottledOutputStream.Rate)}. If compressionLevel is more than 0 the chunks are not pretty
+     * printed and are compressed using the dictionary (which may be null).
+     */
+    public static long write(KeyValueStoreSerializer serializer, final Map<String, ? extends Map<?, ?>> snapshot,
+                             File f, ThrottledOutputStream.Rate rate, int compressionLevel, byte[] dictionary)
+            throws IOException {
+        return write(serializer, new Entries() {
+            public void writeTo(ChunkWriter w) throws IOException {
+                writeMaps(snapshot, w);
+            }
+        }, f, rate, compressionLevel, dictionary);
+    }
+
+    /**
+     * Write the snapshot produced by entries to f in chunks as for {@link #write(KeyValueStoreSerializer,
+     * java.util.Map, java.io.File, io.qdb.kvstore.ThrottledOutputStream.Rate, int, byte[])}.
+     */
+    public static long write(KeyValueStoreSerializer serializer, Entries entries, File f,
+                             ThrottledOutputStream.Rate rate, int compressionLevel, byte[] dictionary)
+            throws IOException {
+        File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        boolean ok = false;
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            ThrottledOutputStream tos = new ThrottledOutputStream(out, rate);
+            ChunkWriter w = new ChunkWriter(serializer, tos, compressionLevel, dictionary);
+            try {
+                entries.writeTo(w);
+                w.finish();
+            } finally {
+                w.end();
+            }
+            tos.flush();
+            out.getChannel().force(true);
+            out.close();
+            if (f.exists() && !f.delete()) throw new IOException("Unable to delete " + f);
+            if (!tmp.renameTo(f)) throw new IOException("Unable to rename " + tmp + " to " + f);
+            ok = true;
+            return tos.getCount();
+        } finally {
+            if (!ok) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+                if (tmp.exists() && !tmp.delete()) log.error("Unable to delete bad snapshot: " + tmp);
+            }
+        }
+    }
+
+    static void writeMaps(Map<String, ? extends Map<?, ?>> snapshot, ChunkWriter w) throws IOException {
+        for (Map.Entry<String, ? extends Map<?, ?>> me : snapshot.entrySet()) {
+            String name = me.getKey();
+            Map<?, ?> m = me.getValue();
+            if (m.isEmpty()) w.putMap(name);
+            for (Map.Entry<?, ?> e : m.entrySet()) w.put(name, e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Supplies the entries for a snapshot.
+     */
+    interface Entries {
+        void writeTo(ChunkWriter w) throws IOException;
+    }
+
+    /**
+     * Receives a snapshot one chunk at a time as it is read.
+     */
+    interface ChunkHandler<K, V> {
+        void onChunk(Map<String, Map<K, V>> chunk) throws IOException;
+    }
+
+    /**
+     * Writes a snapshot to a stream one chunk at a time so only one chunk is ever held in memory. Call
+     * {@link #finish()} after the last entry and {@link #end()} when done with the writer (even if something
+     * failed) to free the native memory used for compression.
+     */
+    static class ChunkWriter {
+
+        private final KeyValueStoreSerializer serializer;
+        private final DataOutputStream dout;
+        private final Deflater deflater;
+        private final byte[] dictionary;
+        private final Map<String, Map<Object, Object>> chunk = new HashMap<String, Map<Object, Object>>();
+        private int size;
+        private int chunks;
+        private long entries;
+
+        ChunkWriter(KeyValueStoreSerializer serializer, OutputStream out, int compressionLevel, byte[] dictionary)
+                throws IOException {
+            if (compressionLevel == 0 || dictionary == null) dictionary = new byte[0];
+            this.serializer = serializer;
+            this.dictionary = dictionary;
+            dout = new DataOutputStream(out);
+            dout.write(MAGIC);
+            dout.writeInt(dictionary.length);
+            dout.write(dictionary);
+            deflater = compressionLevel > 0 ? new Deflater(compressionLevel) : null;
+        }
+
+        /**
+         * Make sure the map is included in the snapshot even if it has no entries.
+         */
+        public void putMap(String map) {
+            if (!chunk.containsKey(map)) chunk.put(map, new HashMap<Object, Object>());
+        }
+
+        public void put(String map, Object key, Object value) throws IOException {
+            Map<Object, Object> target = chunk.get(map);
+            if (target == null) chunk.put(map, target = new HashMap<Object, Object>());
+            if (target.put(key, value) == null && ++size == CHUNK_ENTRIES) flushChunk();
+        }
+
+        /**
+         * How many entries have been written?
+         */
+        public long getEntries() {
+            return entries + size;
+        }
+
+        private void flushChunk() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            serializer.serialize(chunk, deflater == null, bos);
+            byte[] raw = bos.toByteArray();
+            byte[] stored = raw;
+            if (deflater != null) {
+                deflater.reset();
+                if (dictionary.length > 0) deflater.setDictionary(dictionary);
+                deflater.setInput(raw);
+                deflater.finish();
+                bos = new ByteArrayOutputStream(raw.length / 4 + 64);
+                byte[] buf = new byte[8192];
+                while (!deflater.finished()) bos.write(buf, 0, deflater.deflate(buf));
+                stored = bos.toByteArray();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            dout.writeByte(deflater == null ? PLAIN : DEFLATED);
+            dout.writeInt(raw.length);
+            dout.writeInt(stored.length);
+            dout.writeInt((int)crc.getValue());
+            dout.write(stored);
+            ++chunks;
+            entries += size;
+            chunk.clear();
+            size = 0;
+        }
+
+        /**
+         * Write the last chunk and the end marker and flush the stream.
+         */
+        public void finish() throws IOException {
+            if (!chunk.isEmpty()) flushChunk();
+            dout.writeByte(END);
+            dout.writeInt(chunks);
+            dout.writeLong(entries);
+            dout.flush();
+        }
+
+        public void end() {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    /**
+     * What could be read from a snapshot file.
+     */
+    static class Contents<K, V> implements ChunkHandler<K, V> {
+
+        private final Map<String, Map<K, V>> maps = new HashMap<String, Map<K, V>>();
+        private int chunks;
+        private long entries;
+        private long validBytes;
+        private boolean complete;
+        private String error;
+
+        public void onChunk(Map<String, Map<K, V>> chunk) {
+            for (Map.Entry<String, Map<K, V>> e : chunk.entrySet()) {
+                Map<K, V> m = maps.get(e.getKey());
+                if (m == null) maps.put(e.getKey(), m = new HashMap<K, V>());
+                m.putAll(e.getValue());
+            }
+        }
+
+        public Map<String, Map<K, V>> getMaps() {
+            return maps;
+        }
+
+        /**
+         * How many chunks were read? This is 0 for snapshots that are not chunked.
+         */
+        public int getChunks() {
+            return chunks;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * How many bytes at the start of the file were read successfully?
+         */
+        public long getValidBytes() {
+            return validBytes;
+        }
+
+        /**
+         * Was the whole snapshot read?
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Why reading stopped early or null if complete.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static class DamagedSnapshotException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        DamagedSnapshotException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package io.qdb.kvstore;
+
+/**
+ * Decides when snapshots should be taken and how fast they may be written. A snapshot is needed when replaying
+ * the tx log since the last snapshot would take too long or when the log is filling up faster than a snapshot
+ * can be written. Snapshot writes are rate limited and the limit is lowered when foreground appends to the tx log
+ * are slower than the target latency and raised again when they recover. The limit is lifted when the log is
+ * running out of space.
+ */
+class SnapshotScheduler implements ThrottledOutputStream.Rate {
+
+    private static final double ALPHA = 0.1;
+    private static final long ADJUST_INTERVAL_MS = 100;
+
+    private final long maxReplayBytes;
+    private final long maxBytesPerSec;
+    private final long minBytesPerSec;
+    private final double targetLatencyMs;
+    private final Clock clock;
+
+    private double avgLatencyMs;
+    private double fillBytesPerSec;
+    private long fillWindowStartMs;
+    private long fillWindowBytes;
+    private long lastAdjustMs;
+    private double snapshotBytesPerSec;
+    private long lastSnapshotBytes;
+    private volatile long bytesPerSec;
+    private volatile boolean urgent;
+
+    private int snapshotCount;
+    private long totalSnapshotMs;
+    private long maxSnapshotMs;
+    private long totalAppendBytes;
+    private long totalSnapshotBytes;
+
+    /**
+     * @param maxReplayM Snapshot when this many M of tx log would need to be replayed (0 for half the log size)
+     * @param maxMBPerSec Max rate to write snapshots (0 for unlimited)
+     * @param targetLatencyMs Slow down snapshots if appends to the tx log take longer than this on average
+     */
+    SnapshotScheduler(int maxReplayM, int maxMBPerSec, int targetLatencyMs) {
+        this(maxReplayM, maxMBPerSec, targetLatencyMs, Clock.SYSTEM);
+    }
+
+    SnapshotScheduler(int maxReplayM, int maxMBPerSec, int targetLatencyMs, Clock clock) {
+        this.clock = clock;
+        this.maxReplayBytes = maxReplayM * 1000000L;
+        this.maxBytesPerSec = maxMBPerSec * 1000000L;
+        this.minBytesPerSec = maxBytesPerSec / 10;
+        this.targetLatencyMs = targetLatencyMs;
+        this.bytesPerSec = maxBytesPerSec;
+    }
+
+    /**
+     * Record an append to the tx log and return true if a snapshot should be taken as soon as possible.
+     *
+     * @param bytesSinceSnapshot Approximate number of bytes in the log since the last snapshot
+     * @param maxSize Max size of the log
+     * @param payloadSize Size of the record appended
+     * @param latencyNanos How long the append took
+     */
+    public synchronized boolean onAppend(long bytesSinceSnapshot, long maxSize, int payloadSize, long latencyNanos) {
+        long now = clock.currentTimeMillis();
+
+        avgLatencyMs += ALPHA * (latencyNanos / 1000000.0 - avgLatencyMs);
+        fillWindowBytes += payloadSize;
+        totalAppendBytes += payloadSize;
+        if (fillWindowStartMs == 0) {
+            fillWindowStartMs = now;
+        } else if (now - fillWindowStartMs >= ADJUST_INTERVAL_MS) {
+            double rate = fillWindowBytes * 1000.0 / (now - fillWindowStartMs);
+            fillBytesPerSec = fillBytesPerSec == 0 ? rate : fillBytesPerSec + ALPHA * (rate - fillBytesPerSec);
+            fillWindowStartMs = now;
+            fillWindowBytes = 0;
+        }
+
+        if (maxBytesPerSec > 0 && now - lastAdjustMs >= ADJUST_INTERVAL_MS) {
+            lastAdjustMs = now;
+            long r = bytesPerSec;
+            if (avgLatencyMs > targetLatencyMs) r = Math.max(minBytesPerSec, (long)(r * 0.7));
+            else r = Math.min(maxBytesPerSec, (long)(r * 1.1) + 1);
+            bytesPerSec = r;
+        }
+
+        long headroom = maxSize - bytesSinceSnapshot;
+        // assume the next snapshot will be about as big as the last one
+        double snapshotSecs = snapshotBytesPerSec > 0 ? lastSnapshotBytes / snapshotBytesPerSec : 0.0;
+        double fillSecs = fillBytesPerSec > 0 ? headroom / fillBytesPerSec : Double.MAX_VALUE;
+        urgent = headroom < maxSize / 4 || fillSecs < snapshotSecs * 2;
+
+        long replayLimit = maxReplayBytes > 0 ? Math.min(maxReplayBytes, maxSize / 2) : maxSize / 2;
+        return urgent || bytesSinceSnapshot > replayLimit;
+    }
+
+    /**
+     * Record that a snapshot of bytes took ms to write.
+     */
+    public synchronized void onSnapshotSaved(long bytes, long ms) {
+        lastSnapshotBytes = bytes;
+        snapshotBytesPerSec = bytes * 1000.0 / Math.max(ms, 1);
+        urgent = false;
+        ++snapshotCount;
+        totalSnapshotMs += ms;
+        if (ms > maxSnapshotMs) maxSnapshotMs = ms;
+        totalSnapshotBytes += bytes;
+    }
+
+    /**
+     * Get the current snapshot write rate limit in bytes per second or 0 if there is no limit.
+     */
+    public long getBytesPerSec() {
+        return urgent ? 0 : bytesPerSec;
+    }
+
+    public synchronized int getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    public synchronized long getTotalSnapshotMs() {
+        return totalSnapshotMs;
+    }
+
+    public synchronized long getMaxSnapshotMs() {
+        return maxSnapshotMs;
+    }
+
+    public synchronized long getTotalAppendBytes() {
+        return totalAppendBytes;
+    }
+
+    public synchronized long getTotalSnapshotBytes() {
+        return totalSnapshotBytes;
+    }
+}
@@ -0,0 +1,18 @@
+package io.qdb.kvstore;
+
+/**
+ * Thrown when a write is rejected or times out because the transaction log is too full.
+ * @see KeyValueStoreBuilder#backpressure(io.qdb.kvstore.KeyValueStore.Backpressure)
+ */
+public class StoreOverloadedException extends KeyValueStoreException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StoreOverloadedException(String message) {
+        super(message);
+    }
+
+    public StoreOverloadedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
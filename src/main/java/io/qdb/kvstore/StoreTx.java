@@ -8,13 +8,17 @@ import java.io.Serializable;
  */
 public class StoreTx<K, V> implements Serializable {
 
-    public enum Operation { NOP, PUT, REMOVE, PUT_IF_ABSENT, REMOVE_KV, REPLACE, REPLACE_KVV }
+    public enum Operation { NOP, PUT, REMOVE, PUT_IF_ABSENT, REMOVE_KV, REPLACE, REPLACE_KVV, COMPUTE }
 
     public String map;
     public Operation op;
     public K key;
     public V value;
     public V oldValue;
+    /** Name of the {@link KeyValueStore.UpdateFunction} for COMPUTE. */
+    public String fn;
+    /** Argument for the update function for COMPUTE. */
+    public Object arg;
 
     public StoreTx() { }
 
@@ -34,10 +38,20 @@ public class StoreTx<K, V> implements Serializable {
         this.oldValue = oldValue;
     }
 
+    /**
+     * Create a COMPUTE tx to apply update function fn to the value for key.
+     */
+    public static <K, V> StoreTx<K, V> compute(String map, K key, String fn, Object arg) {
+        StoreTx<K, V> tx = new StoreTx<K, V>(map, Operation.COMPUTE, key);
+        tx.fn = fn;
+        tx.arg = arg;
+        return tx;
+    }
+
     @Override
     public String toString() {
         return map + " " + op + " k=" + key + (value == null ? "" : " v=" + value) +
-                (oldValue == null ? "" : " ov=" + oldValue);
+                (oldValue == null ? "" : " ov=" + oldValue) + (fn == null ? "" : " fn=" + fn + "(" + arg + ")");
     }
 
 }
@@ -0,0 +1,86 @@
+package io.qdb.kvstore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Limits the rate at which data is written to the underlying stream and counts the bytes written. The rate is
+ * checked on each write so it can change while data is being written and the new rate applies straight away.
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+
+    /** Supplies the current rate limit. */
+    interface Rate {
+        /** Max bytes per second or 0 for unlimited. */
+        long getBytesPerSec();
+    }
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Rate rate;
+    private final Clock clock;
+    private long count;
+    private long windowStart;
+    private long windowBytes;
+    private long windowRate;
+
+    ThrottledOutputStream(OutputStream out, Rate rate) {
+        this(out, rate, Clock.SYSTEM);
+    }
+
+    ThrottledOutputStream(OutputStream out, Rate rate, Clock clock) {
+        super(out);
+        this.rate = rate;
+        this.clock = clock;
+        windowStart = clock.nanoTime();
+    }
+
+    /**
+     * How many bytes have been written?
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        throttle(1);
+        out.write(b);
+        ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE);
+            throttle(n);
+            out.write(b, off, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void throttle(int len) throws IOException {
+        long bytesPerSec = rate == null ? 0 : rate.getBytesPerSec();
+        long now = clock.nanoTime();
+        // start a new window when the rate changes so bytes written at the old rate don't allow a burst
+        if (bytesPerSec <= 0 || bytesPerSec != windowRate || now - windowStart > 1000000000L) {
+            windowStart = now;
+            windowBytes = 0;
+            windowRate = bytesPerSec;
+        }
+        windowBytes += len;
+        if (bytesPerSec <= 0) return;
+        long aheadMs = windowBytes * 1000L / bytesPerSec - (now - windowStart) / 1000000L;
+        if (aheadMs > 0) {
+            try {
+                clock.sleep(aheadMs);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+    }
+}
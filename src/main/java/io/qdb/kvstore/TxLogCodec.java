@@ -0,0 +1,310 @@
+package io.qdb.kvstore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frames tx log records and optionally compresses them one at a time using a preset dictionary built from the
+ * class aliases, map names and the field names of {@link StoreTx}. This makes compression worthwhile for small
+ * records. The framing is carried in the routing key of each record so the payload is never sniffed: a type
+ * character ('p' for plain, 'z' for a zlib stream) followed by the CRC-32 of the payload in hex. Records with no
+ * routing key were written before framing was added and are plain and unchecked. Compressed records identify
+ * their dictionary by Adler-32 checksum and dictionaries are saved in dir/dict so the log can always be read
+ * back. Records that do not get smaller are left alone. Decoding works whatever the compression level.
+ */
+class TxLogCodec implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TxLogCodec.class);
+
+    static final char PLAIN = 'p';
+    static final char DEFLATED = 'z';
+
+    private final File dictDir;
+    private final int level;
+    private final List<String> aliases;
+    private final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<Long, byte[]>();
+    private final Map<Long, Long> lastUsedIds = new ConcurrentHashMap<Long, Long>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private Set<String> mapNames;
+    private volatile Dictionary dictionary;
+    private volatile boolean closed;
+
+    /**
+     * @param dictDir Where dictionaries are saved and loaded from
+     * @param level Compression level (0 to 9), 0 for no compression
+     * @param aliases Class aliases used by the serializer
+     */
+    TxLogCodec(File dictDir, int level, Collection<String> aliases) {
+        this.dictDir = dictDir;
+        this.level = level;
+        this.aliases = new ArrayList<String>(aliases);
+        this.aliases.add("tx");
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the dictionary in use or null if none.
+     */
+    public byte[] getDictionary() {
+        Dictionary d = dictionary;
+        return d == null ? null : d.bytes;
+    }
+
+    /**
+     * Rebuild the dictionary if the map names have changed since it was last built. The new dictionary is saved
+     * before it is used. NOP if not compressing.
+     */
+    public synchronized void train(Collection<String> names) throws IOException {
+        if (level == 0) return;
+        Set<String> set = new TreeSet<String>(names);
+        if (set.equals(mapNames)) return;
+        byte[] dict = buildDictionary(aliases, set);
+        long id = checksum(dict);
+        File f = getDictionaryFile(id);
+        if (!f.exists()) {
+            DirUtil.ensureDirectory(dictDir);
+            File tmp = new File(dictDir, f.getName() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(dict);
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f)) throw new IOException("Unable to rename " + tmp + " to " + f);
+            if (log.isDebugEnabled()) log.debug("Created " + f);
+        }
+        dictionaries.put(id, dict);
+        mapNames = set;
+        dictionary = new Dictionary(id, dict);
+    }
+
+    /**
+     * Build a dictionary from the strings that are likely to appear in serialized transactions and snapshots.
+     * Deflate favours the end of the dictionary so the most common strings go last.
+     */
+    static byte[] buildDictionary(Collection<String> aliases, Collection<String> mapNames) {
+        StringBuilder b = new StringBuilder();
+        b.append("\"fn\":\"\"arg\":\"oldValue\":");
+        for (StoreTx.Operation op : StoreTx.Operation.values()) b.append("\"op\":\"").append(op).append("\"");
+        for (String name : mapNames) b.append("{\"").append(name).append("\":{\"map\":\"").append(name).append("\",");
+        for (String alias : aliases) b.append("{\"@class\":\"").append(alias).append("\",");
+        b.append("\"op\":\"PUT\",\"value\":{\"@class\":\"{\"@class\":\"tx\",\"key\":\"");
+        try {
+            return b.toString().getBytes("UTF8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long checksum(byte[] dict) {
+        Adler32 a = new Adler32();
+        a.update(dict);
+        return a.getValue();
+    }
+
+    private static String frame(char type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return type + Long.toHexString(crc.getValue());
+    }
+
+    private File getDictionaryFile(long id) {
+        return new File(dictDir, String.format("%08x.dict", id));
+    }
+
+    /**
+     * Frame payload, compressing it if compression is on and it gets smaller.
+     */
+    public Record encode(byte[] payload) {
+        Dictionary dict = dictionary;
+        if (level == 0 || payload.length < 16) return new Record(frame(PLAIN, payload), payload, -1);
+        Deflater d = deflaters.poll();
+        if (d == null) d = new Deflater(level);
+        try {
+            d.reset();
+            if (dict != null) d.setDictionary(dict.bytes);
+            d.setInput(payload);
+            d.finish();
+            byte[] buf = new byte[payload.length];
+            int n = 0;
+            while (!d.finished() && n < buf.length) n += d.deflate(buf, n, buf.length - n);
+            // didn't get smaller
+            if (!d.finished()) return new Record(frame(PLAIN, payload), payload, -1);
+            byte[] compressed = Arrays.copyOf(buf, n);
+            return new Record(frame(DEFLATED, compressed), compressed, dict == null ? -1 : dict.id);
+        } finally {
+            release(d);
+        }
+    }
+
+    private void release(Deflater d) {
+        if (closed) {
+            d.end();
+        } else {
+            deflaters.offer(d);
+            if (closed) endDeflaters();
+        }
+    }
+
+    /**
+     * Get a stream to read the serialized tx in payload. Throws {@link CorruptRecordException} if the record is
+     * damaged and IOException for other problems (e.g. a missing dictionary).
+     */
+    public InputStream decode(String routingKey, byte[] payload) throws IOException {
+        if (routingKey == null || routingKey.length() == 0) return new ByteArrayInputStream(payload);
+        char type = routingKey.charAt(0);
+        long crc;
+        try {
+            crc = Long.parseLong(routingKey.substring(1), 16);
+        } catch (NumberFormatException e) {
+            throw new CorruptRecordException("Bad routing key [" + routingKey + "]");
+        }
+        CRC32 check = new CRC32();
+        check.update(payload);
+        if (check.getValue() != crc) throw new CorruptRecordException("Checksum mismatch");
+        if (type == PLAIN) return new ByteArrayInputStream(payload);
+        if (type != DEFLATED) throw new IOException("Unknown record type [" + routingKey + "]");
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput(payload);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buf = new byte[Math.max(payload.length * 4, 256)];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0) {
+                    if (inf.needsDictionary()) inf.setDictionary(loadDictionary(inf.getAdler() & 0xffffffffL));
+                    else if (inf.needsInput()) throw new CorruptRecordException("Truncated compressed record");
+                }
+                bos.write(buf, 0, n);
+            }
+            return new ByteArrayInputStream(bos.toByteArray());
+        } catch (DataFormatException e) {
+            throw new CorruptRecordException("Corrupt compressed record: " + e);
+        } finally {
+            inf.end();
+        }
+    }
+
+    private byte[] loadDictionary(long id) throws IOException {
+        byte[] dict = dictionaries.get(id);
+        if (dict != null) return dict;
+        File f = getDictionaryFile(id);
+        if (!f.exists()) throw new IOException("Dictionary not found: " + f);
+        dict = new byte[(int)f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(dict);
+        } finally {
+            in.close();
+        }
+        dictionaries.put(id, dict);
+        return dict;
+    }
+
+    /**
+     * Record that r was appended to the log with id so we know when its dictionary is no longer needed.
+     */
+    public void onAppend(Record r, long id) {
+        if (r.dictionaryId >= 0) lastUsedIds.put(r.dictionaryId, id);
+    }
+
+    /**
+     * Assume that all the dictionaries in our directory might be in use by records up to nextId. Call this when
+     * the store is opened.
+     */
+    public void onOpen(long nextId) {
+        String[] names = dictDir.list(new RegexFilenameFilter("[0-9a-f]{8}\\.dict"));
+        if (names == null) return;
+        for (String name : names) {
+            Long id = Long.parseLong(name.substring(0, 8), 16);
+            if (!lastUsedIds.containsKey(id)) lastUsedIds.put(id, nextId);
+        }
+    }
+
+    /**
+     * Delete dictionaries other than the current one that were last used by records before oldestId. Those
+     * records have been removed from the log and snapshots include their own dictionaries.
+     */
+    public synchronized void deleteUnusedDictionaries(long oldestId) {
+        Dictionary current = dictionary;
+        for (Map.Entry<Long, Long> e : lastUsedIds.entrySet()) {
+            long id = e.getKey();
+            if ((current != null && current.id == id) || e.getValue() >= oldestId) continue;
+            File f = getDictionaryFile(id);
+            if (f.exists() && !f.delete()) {
+                log.error("Unable to delete " + f);
+                continue;
+            }
+            if (log.isDebugEnabled()) log.debug("Deleted " + f);
+            lastUsedIds.remove(id);
+            dictionaries.remove(id);
+        }
+    }
+
+    /**
+     * Free the native memory used by our Deflaters.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        endDeflaters();
+    }
+
+    private void endDeflaters() {
+        for (Deflater d; (d = deflaters.poll()) != null; ) d.end();
+    }
+
+    /**
+     * A framed tx log record ready to be appended.
+     */
+    static class Record {
+
+        final String routingKey;
+        final byte[] payload;
+        /** Id of the dictionary used to compress the payload or -1 if none. */
+        final long dictionaryId;
+
+        Record(String routingKey, byte[] payload, long dictionaryId) {
+            this.routingKey = routingKey;
+            this.payload = payload;
+            this.dictionaryId = dictionaryId;
+        }
+    }
+
+    private static class Dictionary {
+
+        final long id;
+        final byte[] bytes;
+
+        Dictionary(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A record failed its checksum or framing check.
+     */
+    static class CorruptRecordException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+}
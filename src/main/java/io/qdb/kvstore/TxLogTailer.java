@@ -0,0 +1,208 @@
+package io.qdb.kvstore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads records from a transaction log directory while another process appends to it. PersistentMessageBuffer
+ * can't be used for this as it opens files for writing and truncates them to their last checkpoint. Log files are
+ * named [first id]-[timestamp]-[count].qdb and have a 4096 byte header followed by records. Each record has a 15
+ * byte header (0xA1, timestamp, routing key length, payload length) followed by the routing key and payload. The
+ * id of a record is the id of its file plus its offset from the end of the file header and the first file id
+ * of the next file is the id following the last record in the previous file.
+ * <p>
+ * If the writer crashes it truncates the log to its last checkpoint when it is restarted so records we have
+ * already read might vanish and be replaced by different ones. This is detected when the file is shorter than
+ * our position or the data there is not a record and the tailer stops and reports that it has diverged.
+ */
+class TxLogTailer implements Closeable {
+
+    private static final int FILE_HEADER_SIZE = 4096;
+    private static final short FILE_MAGIC = (short)0xBE01;
+    private static final int RECORD_HEADER_SIZE = 15;
+    private static final byte RECORD_TYPE = (byte)0xA1;
+
+    private static final FilenameFilter QDB_FILTER = new RegexFilenameFilter("[0-9a-f]+-[0-9a-f]+-[0-9]+\\.qdb");
+
+    private final File dir;
+    private final byte[] header = new byte[RECORD_HEADER_SIZE];
+    private long nextId;
+    private long fileId;
+    private RandomAccessFile file;
+    private boolean diverged;
+
+    private long id;
+    private long timestamp;
+    private String routingKey;
+    private byte[] payload;
+
+    /**
+     * Read records from the log in dir starting at nextId. The directory does not have to exist yet.
+     */
+    TxLogTailer(File dir, long nextId) {
+        this.dir = dir;
+        this.nextId = nextId;
+    }
+
+    /**
+     * Advance to the next record. Returns false if there are no complete records after the current one yet or if
+     * the log has diverged.
+     */
+    public boolean next() throws IOException {
+        while (!diverged) {
+            if (file == null && !openFileFor(nextId)) return false;
+            long pos = FILE_HEADER_SIZE + nextId - fileId;
+            long length = file.length();
+            if (length < pos) return diverge();
+            if (length >= pos + RECORD_HEADER_SIZE) {
+                file.seek(pos);
+                file.readFully(header);
+                ByteBuffer b = ByteBuffer.wrap(header);
+                // records are written in order so if we can see the header it starts with the record type
+                if (b.get() != RECORD_TYPE) return diverge();
+                long ts = b.getLong();
+                int routingKeyLength = b.getShort() & 0xffff;
+                int payloadLength = b.getInt();
+                if (payloadLength < 0) return diverge();
+                long end = pos + RECORD_HEADER_SIZE + routingKeyLength + payloadLength;
+                if (length < end) return false;
+                byte[] k = new byte[routingKeyLength];
+                byte[] p = new byte[payloadLength];
+                file.readFully(k);
+                file.readFully(p);
+                id = nextId;
+                timestamp = ts;
+                routingKey = new String(k, "UTF8");
+                payload = p;
+                nextId += end - pos;
+                return true;
+            }
+            // the writer has finished with this file once it has started the next one
+            if (Arrays.binarySearch(listFileIds(), nextId) < 0) return false;
+            closeFile();
+        }
+        return false;
+    }
+
+    private boolean diverge() {
+        diverged = true;
+        return false;
+    }
+
+    /**
+     * Has the log been truncated and rewritten by the writer (or damaged) at or before our position? If so the
+     * records we have read might no longer be in the log and we can't continue.
+     */
+    public boolean isDiverged() {
+        return diverged;
+    }
+
+    /**
+     * Mark the log as diverged. Use this when a record read from the log turns out to be damaged.
+     */
+    public void setDiverged() {
+        diverged = true;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Get the id of the current record.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Get the id of the record after the current one.
+     */
+    public long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Have the records we need to read next been deleted from the log? This happens when the log rolls over
+     * before we have read everything.
+     */
+    public boolean isBehind() throws IOException {
+        long[] ids = listFileIds();
+        if (ids.length == 0 || ids[0] <= nextId) return false;
+        // the file we have open might have been deleted but still have records in it
+        return file == null || file.length() <= FILE_HEADER_SIZE + nextId - fileId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeFile();
+    }
+
+    private boolean openFileFor(long id) throws IOException {
+        // use the newest file starting at or before id
+        String[] names = listFiles();
+        String name = null;
+        long best = -1;
+        for (String n : names) {
+            long fid = getFileId(n);
+            if (fid <= id && fid > best) {
+                best = fid;
+                name = n;
+            }
+        }
+        if (name == null) return false;
+        RandomAccessFile f;
+        try {
+            f = new RandomAccessFile(new File(dir, name), "r");
+        } catch (FileNotFoundException e) {
+            return false;   // deleted or renamed by the writer, try again later
+        }
+        if (f.length() >= 2 && f.readShort() != FILE_MAGIC) {
+            f.close();
+            return diverge();
+        }
+        file = f;
+        fileId = best;
+        return true;
+    }
+
+    private String[] listFiles() {
+        String[] names = dir.list(QDB_FILTER);
+        return names == null ? new String[0] : names;
+    }
+
+    private static long getFileId(String name) {
+        return Long.parseLong(name.substring(0, name.indexOf('-')), 16);
+    }
+
+    private long[] listFileIds() {
+        String[] names = listFiles();
+        long[] ids = new long[names.length];
+        for (int i = 0; i < names.length; i++) ids[i] = getFileId(names[i]);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            try {
+                file.close();
+            } finally {
+                file = null;
+            }
+        }
+    }
+}
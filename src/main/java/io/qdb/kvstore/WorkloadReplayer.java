@@ -0,0 +1,500 @@
+package io.qdb.kvstore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Replays the transactions recorded in the tx log of an existing store against a fresh store to measure how a store
+ * configuration or serializer performs with real traffic. The new store is seeded with the oldest snapshot still
+ * covered by the source tx log and the transactions after it are executed through the map API in their original
+ * order at their original speed, a multiple of it or flat out. Reader threads can run gets on recently written
+ * keys at a fixed rate at the same time. Run the main method to replay a store directory. The source store may be
+ * in use.
+ */
+public class WorkloadReplayer {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkloadReplayer.class);
+
+    private static final int RECENT_KEYS = 4096;
+
+    private double speed = 1.0;
+    private int readers;
+    private double readsPerSec = 1000;
+    private long limit = Long.MAX_VALUE;
+    private final Clock clock;
+
+    public WorkloadReplayer() {
+        this(Clock.SYSTEM);
+    }
+
+    WorkloadReplayer(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Replay at this multiple of the original speed. Use 0 to replay as fast as possible. Default is 1.0.
+     */
+    public WorkloadReplayer speed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * How many threads should read from the store during the replay? Default is 0.
+     */
+    public WorkloadReplayer readers(int readers) {
+        this.readers = readers;
+        return this;
+    }
+
+    /**
+     * How many gets per second should the reader threads run in total? Use 0 to read as fast as possible which
+     * keeps a CPU busy per reader and skews the write latencies. Default is 1000.
+     */
+    public WorkloadReplayer readsPerSec(double readsPerSec) {
+        this.readsPerSec = readsPerSec;
+        return this;
+    }
+
+    /**
+     * Stop after this many transactions. Default is no limit.
+     */
+    public WorkloadReplayer limit(long limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Replay the transactions in sourceDir into a new store created by target. The target directory must not
+     * contain a store and the target must not be partitioned. The serializer, aliases, version provider and update
+     * functions of target must be compatible with the source store.
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Report replay(File sourceDir, KeyValueStoreBuilder<K, V> target) throws IOException {
+        sourceDir = DirUtil.checkDirectory(sourceDir);
+        if (PartitionedKeyValueStore.isPartitioned(sourceDir)) {
+            throw new IOException("Replaying partitioned stores is not supported: " + sourceDir);
+        }
+        KeyValueStoreSerializer serializer = target.getSerializer();
+        File txLogDir = new File(sourceDir, "txlog");
+
+        // use the oldest snapshot the log still covers to replay as many transactions as possible
+        long firstId = 0;
+        File seed = null;
+        for (File f : SnapshotFile.list(sourceDir)) {
+            TxLogTailer t = new TxLogTailer(txLogDir, SnapshotFile.getId(f));
+            boolean behind = t.isBehind();
+            t.close();
+            if (!behind) {
+                seed = f;
+                firstId = SnapshotFile.getId(f);
+                break;
+            }
+        }
+        if (seed != null) {
+            if (log.isDebugEnabled()) log.debug("Seeding " + target.getDir() + " from " + seed);
+            InputStream in = new BufferedInputStream(new FileInputStream(seed), 65536);
+            try {
+                new KeyValueStoreDump(serializer).importStore(in, KeyValueStoreDump.Format.SNAPSHOT, target.getDir());
+            } finally {
+                in.close();
+            }
+        }
+
+        KeyValueStore<K, V> store = target.create();
+        TxLogTailer tailer = new TxLogTailer(txLogDir, firstId);
+        TxLogCodec codec = new TxLogCodec(new File(sourceDir, "dict"), 0, Collections.<String>emptyList());
+        List<Reader<K, V>> readerThreads = new ArrayList<Reader<K, V>>();
+        try {
+            if (store instanceof PartitionedKeyValueStore) {
+                throw new IOException("Replaying into partitioned stores is not supported");
+            }
+            if (tailer.isBehind()) throw new IOException("No snapshot is covered by the tx log in " + sourceDir);
+
+            RecentKeys<K, V> recent = new RecentKeys<K, V>();
+            for (String name : store.getMapNames()) {
+                for (K key : store.getMap(name).keySet()) {
+                    if (recent.size() == RECENT_KEYS) break;
+                    recent.add(new StoreTx<K, V>(name, StoreTx.Operation.NOP, key));
+                }
+            }
+            for (int i = 0; i < readers; i++) {
+                readerThreads.add(new Reader<K, V>(store, recent, readsPerSec / readers, clock,
+                        "kvstore-replay-reader-" + i));
+            }
+            // readers are started once there is at least one key to read
+            boolean readersStarted = false;
+
+            long gcCount0 = getGcCount(), gcMs0 = getGcMs();
+            Latencies writes = new Latencies();
+            long errors = 0, count = 0;
+            long firstTimestamp = 0;
+            long start = clock.nanoTime();
+            for (; count < limit && tailer.next(); count++) {
+                if (!readersStarted && recent.size() > 0) {
+                    for (Reader<K, V> rt : readerThreads) rt.start();
+                    readersStarted = true;
+                }
+                StoreTx<K, V> tx = serializer.deserialize(codec.decode(tailer.getRoutingKey(), tailer.getPayload()),
+                        StoreTx.class);
+                if (count == 0) firstTimestamp = tailer.getTimestamp();
+                if (speed > 0) {
+                    pace(clock, start, (long)((tailer.getTimestamp() - firstTimestamp) * 1000000L / speed));
+                }
+                long t0 = System.nanoTime();
+                try {
+                    exec(store, tx);
+                } catch (KeyValueStoreException e) {
+                    // these probably failed when they were first run as well
+                    ++errors;
+                }
+                writes.add(System.nanoTime() - t0);
+                if (tx.key != null) recent.add(tx);
+            }
+            long elapsedNanos = clock.nanoTime() - start;
+
+            Latencies reads = new Latencies();
+            for (Reader<K, V> r : readerThreads) reads.addAll(r.finish());
+            readerThreads.clear();
+
+            SnapshotScheduler ss = ((KeyValueStoreImpl<K, V>)store).getSnapshotScheduler();
+            return new Report(count, errors, elapsedNanos, writes, reads, getGcCount() - gcCount0,
+                    getGcMs() - gcMs0, ss.getSnapshotCount(), ss.getTotalSnapshotMs(), ss.getMaxSnapshotMs(),
+                    ss.getTotalAppendBytes(), ss.getTotalSnapshotBytes());
+        } finally {
+            for (Reader<K, V> r : readerThreads) r.finish();
+            tailer.close();
+            codec.close();
+            store.close();
+        }
+    }
+
+    /**
+     * Sleep until dueNanos after start if that is at least a millisecond away.
+     */
+    private static void pace(Clock clock, long start, long dueNanos) {
+        long ms = (dueNanos - (clock.nanoTime() - start)) / 1000000L;
+        if (ms <= 0) return;
+        try {
+            clock.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyValueStoreException("Replay interrupted", e);
+        }
+    }
+
+    /**
+     * Execute tx using the public map API so all the overheads of a real write are included.
+     */
+    private static <K, V> void exec(KeyValueStore<K, V> store, StoreTx<K, V> tx) {
+        KeyValueMap<K, V> m = store.getMap(tx.map);
+        switch (tx.op) {
+            case NOP:
+                break;
+            case PUT:
+                m.put(tx.key, tx.value);
+                break;
+            case REMOVE:
+                m.remove(tx.key);
+                break;
+            case PUT_IF_ABSENT:
+                m.putIfAbsent(tx.key, tx.value);
+                break;
+            case REMOVE_KV:
+                m.remove(tx.key, tx.value);
+                break;
+            case REPLACE:
+                m.replace(tx.key, tx.value);
+                break;
+            case REPLACE_KVV:
+                m.replace(tx.key, tx.oldValue, tx.value);
+                break;
+            case COMPUTE:
+                m.compute(tx.key, tx.fn, tx.arg);
+                break;
+            default:
+                throw new KeyValueStoreException("Unhandled operation: " + tx);
+        }
+    }
+
+    private static long getGcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean b : ManagementFactory.getGarbageCollectorMXBeans()) n += b.getCollectionCount();
+        return n;
+    }
+
+    private static long getGcMs() {
+        long n = 0;
+        for (GarbageCollectorMXBean b : ManagementFactory.getGarbageCollectorMXBeans()) n += b.getCollectionTime();
+        return n;
+    }
+
+    /**
+     * A ring of recently written keys. Only the slots that have been filled are sampled.
+     */
+    private static class RecentKeys<K, V> {
+
+        private final AtomicReferenceArray<StoreTx<K, V>> ring = new AtomicReferenceArray<StoreTx<K, V>>(RECENT_KEYS);
+        private final AtomicInteger filled = new AtomicInteger();
+        private long added;
+
+        /**
+         * Add tx overwriting the oldest key once the ring is full. Only called by the replay thread.
+         */
+        void add(StoreTx<K, V> tx) {
+            ring.set((int)(added++ % RECENT_KEYS), tx);
+            if (added <= RECENT_KEYS) filled.set((int)added);
+        }
+
+        int size() {
+            return filled.get();
+        }
+
+        /**
+         * Get a random key. Must not be called until at least one key has been added.
+         */
+        StoreTx<K, V> sample(Random rnd) {
+            return ring.get(rnd.nextInt(filled.get()));
+        }
+    }
+
+    /**
+     * Gets random recently written keys at up to readsPerSec (0 for no limit) until finished. Each reader does at
+     * least one get.
+     */
+    private static class Reader<K, V> extends Thread {
+
+        private final KeyValueStore<K, V> store;
+        private final RecentKeys<K, V> recent;
+        private final double readsPerSec;
+        private final Clock clock;
+        private final Latencies latencies = new Latencies();
+        private volatile boolean done;
+
+        Reader(KeyValueStore<K, V> store, RecentKeys<K, V> recent, double readsPerSec, Clock clock, String name) {
+            super(name);
+            this.store = store;
+            this.recent = recent;
+            this.readsPerSec = readsPerSec;
+            this.clock = clock;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Random rnd = new Random();
+            long start = clock.nanoTime();
+            long n = 0;
+            do {
+                // reads that fall behind schedule are run back to back to catch up
+                if (readsPerSec > 0) pace(clock, start, (long)(n * 1e9 / readsPerSec));
+                StoreTx<K, V> tx = recent.sample(rnd);
+                long t0 = System.nanoTime();
+                store.getMap(tx.map).get(tx.key);
+                latencies.add(System.nanoTime() - t0);
+                ++n;
+            } while (!done);
+        }
+
+        Latencies finish() {
+            done = true;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return latencies;
+        }
+    }
+
+    /**
+     * Records latencies in nanoseconds in a fixed size histogram and computes percentiles. Each power of 2 is split
+     * into 16 buckets so percentiles are within 1/16 of the true value. The maximum is exact.
+     */
+    static class Latencies {
+
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS) * SUB];
+        private long count;
+        private long max;
+
+        void add(long nanos) {
+            if (nanos < 0) nanos = 0;
+            ++counts[index(nanos)];
+            ++count;
+            if (nanos > max) max = nanos;
+        }
+
+        void addAll(Latencies o) {
+            for (int i = 0; i < counts.length; i++) counts[i] += o.counts[i];
+            count += o.count;
+            if (o.max > max) max = o.max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        private static int index(long v) {
+            if (v < SUB) return (int)v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB + (int)((v >>> shift) & (SUB - 1));
+        }
+
+        /**
+         * Get the largest value that falls into bucket i.
+         */
+        private static long highest(int i) {
+            if (i < SUB) return i;
+            int shift = i / SUB - 1;
+            return ((long)(SUB + i % SUB) << shift) + (1L << shift) - 1;
+        }
+
+        /**
+         * Get the latency at percentile p (0 to 100) in nanoseconds.
+         */
+        long percentile(double p) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long)Math.ceil(p / 100.0 * count));
+            if (rank >= count) return max;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highest(i), max);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * The results of a replay. Latencies are in microseconds.
+     */
+    public static class Report {
+
+        public final long transactions;
+        public final long errors;
+        public final long elapsedMs;
+        public final double transactionsPerSec;
+        public final long writeP50, writeP90, writeP99, writeP999, writeMax;
+        public final long reads;
+        public final double readsPerSec;
+        public final long readP50, readP99, readMax;
+        public final long gcCount;
+        public final long gcMs;
+        public final int snapshots;
+        public final long snapshotTotalMs;
+        public final long snapshotMaxMs;
+        public final long txLogBytes;
+        public final long snapshotBytes;
+
+        Report(long transactions, long errors, long elapsedNanos, Latencies writes, Latencies reads, long gcCount,
+               long gcMs, int snapshots, long snapshotTotalMs, long snapshotMaxMs, long txLogBytes,
+               long snapshotBytes) {
+            this.transactions = transactions;
+            this.errors = errors;
+            this.elapsedMs = elapsedNanos / 1000000L;
+            double secs = Math.max(elapsedNanos, 1) / 1e9;
+            this.transactionsPerSec = transactions / secs;
+            this.writeP50 = writes.percentile(50) / 1000;
+            this.writeP90 = writes.percentile(90) / 1000;
+            this.writeP99 = writes.percentile(99) / 1000;
+            this.writeP999 = writes.percentile(99.9) / 1000;
+            this.writeMax = writes.percentile(100) / 1000;
+            this.reads = reads.count();
+            this.readsPerSec = reads.count() / secs;
+            this.readP50 = reads.percentile(50) / 1000;
+            this.readP99 = reads.percentile(99) / 1000;
+            this.readMax = reads.percentile(100) / 1000;
+            this.gcCount = gcCount;
+            this.gcMs = gcMs;
+            this.snapshots = snapshots;
+            this.snapshotTotalMs = snapshotTotalMs;
+            this.snapshotMaxMs = snapshotMaxMs;
+            this.txLogBytes = txLogBytes;
+            this.snapshotBytes = snapshotBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "transactions: %d (%d errors) in %d ms, %.0f/sec\n" +
+                    "write latency us: p50 %d p90 %d p99 %d p99.9 %d max %d\n" +
+                    "reads: %d, %.0f/sec, latency us: p50 %d p99 %d max %d\n" +
+                    "gc: %d collections, %d ms\n" +
+                    "snapshots: %d, total %d ms, max %d ms\n" +
+                    "bytes written: tx log %d, snapshots %d",
+                    transactions, errors, elapsedMs, transactionsPerSec,
+                    writeP50, writeP90, writeP99, writeP999, writeMax,
+                    reads, readsPerSec, readP50, readP99, readMax,
+                    gcCount, gcMs,
+                    snapshots, snapshotTotalMs, snapshotMaxMs,
+                    txLogBytes, snapshotBytes);
+        }
+    }
+
+    /**
+     * Replay a store directory into a new one.
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<String>();
+        KeyValueStoreBuilder<Object, Object> b = new KeyValueStoreBuilder<Object, Object>();
+        WorkloadReplayer replayer = new WorkloadReplayer();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--alias".equals(a)) {
+                String[] ac = args[++i].split("=");
+                b.alias(ac[0], Class.forName(ac[1]));
+            } else if ("--version-provider".equals(a)) {
+                b.versionProvider((KeyValueStore.VersionProvider<Object>)Class.forName(args[++i])
+                        .getDeclaredConstructor().newInstance());
+            } else if ("--update-function".equals(a)) {
+                String[] ac = args[++i].split("=");
+                b.updateFunction(ac[0], (KeyValueStore.UpdateFunction<Object, Object>)Class.forName(ac[1])
+                        .getDeclaredConstructor().newInstance());
+            } else if ("--speed".equals(a)) {
+                replayer.speed(Double.parseDouble(args[++i]));
+            } else if ("--readers".equals(a)) {
+                replayer.readers(Integer.parseInt(args[++i]));
+            } else if ("--reads-per-sec".equals(a)) {
+                replayer.readsPerSec(Double.parseDouble(args[++i]));
+            } else if ("--limit".equals(a)) {
+                replayer.limit(Long.parseLong(args[++i]));
+            } else if ("--txlog-size-m".equals(a)) {
+                b.txLogSizeM(Integer.parseInt(args[++i]));
+            } else if ("--compression-level".equals(a)) {
+                b.compressionLevel(Integer.parseInt(args[++i]));
+            } else if ("--snapshot-max-mb-per-sec".equals(a)) {
+                b.snapshotMaxMBPerSec(Integer.parseInt(args[++i]));
+            } else {
+                rest.add(a);
+            }
+        }
+        if (rest.size() != 2) {
+            System.err.println("Usage: WorkloadReplayer [options] <source store dir> <new store dir>\n" +
+                    "Options:\n" +
+                    "  --alias <alias>=<class>            Class alias used by the store (repeat as needed)\n" +
+                    "  --version-provider <class>         Version provider used by the store\n" +
+                    "  --update-function <name>=<class>   Update function used by the store (repeat as needed)\n" +
+                    "  --speed <n>                        Multiple of original speed, 0 for flat out (default 1)\n" +
+                    "  --readers <n>                      Number of concurrent reader threads (default 0)\n" +
+                    "  --reads-per-sec <n>                Total reads per second, 0 for flat out (default 1000)\n" +
+                    "  --limit <n>                        Stop after n transactions\n" +
+                    "  --txlog-size-m <n>                 Tx log size for the new store\n" +
+                    "  --snapshot-max-mb-per-sec <n>      Snapshot write rate limit for the new store\n" +
+                    "  --compression-level <n>            Compression level for the new store (0 to 9)");
+            System.exit(1);
+        }
+        b.dir(rest.get(1));
+        System.out.println(replayer.replay(new File(rest.get(0)), b));
+    }
+}
@@ -0,0 +1,130 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Admission control when the tx log is filling up.
+ */
+class BackpressureSpec extends Specification {
+
+    @Shared File dir = new File("build/test-backpressure")
+
+    static class FakeStore implements AdmissionController.Store {
+        double pressure
+        int snapshotRequests
+        SnapshotSchedulerSpec.FakeClock clock
+        double getWritePressure() { return pressure }
+        void snapshotAsap() {
+            ++snapshotRequests
+            // time passes between polls
+            if (clock != null) clock.advance(100)
+        }
+    }
+
+    def setupSpec() {
+        if (dir.exists() && dir.isDirectory()) FileUtils.deleteDirectory(dir)
+    }
+
+    private static AdmissionController controller(KeyValueStore.Backpressure policy,
+                                                  Clock clock = new SnapshotSchedulerSpec.FakeClock()) {
+        return new AdmissionController(policy, 0.5, 0.75, 200, 100, clock)
+    }
+
+    def "below low water mark writes are admitted"() {
+        def s = new FakeStore(pressure: 0.4)
+
+        when:
+        controller(KeyValueStore.Backpressure.SHED).admit(s, true)
+        controller(KeyValueStore.Backpressure.BLOCK).admit(s, false)
+
+        then:
+        s.snapshotRequests == 0
+    }
+
+    def "shed rejects low priority writes above low water mark"() {
+        def s = new FakeStore(pressure: 0.6)
+        def c = controller(KeyValueStore.Backpressure.SHED)
+
+        when:
+        c.admit(s, false)
+        c.admit(s, true)
+
+        then:
+        thrown(StoreOverloadedException)
+    }
+
+    def "slow delays writes proportionally"() {
+        def clock = new SnapshotSchedulerSpec.FakeClock()
+        def c = controller(KeyValueStore.Backpressure.SLOW, clock)
+
+        when:
+        c.admit(new FakeStore(pressure: pressure), false)
+
+        then:
+        clock.slept == slept
+
+        where:
+        pressure | slept
+        0.4      | 0
+        0.5      | 0
+        0.6      | 40
+        0.7      | 80
+    }
+
+    def "block waits for snapshot"() {
+        def s = new FakeStore(pressure: 0.8)
+        def c = controller(KeyValueStore.Backpressure.BLOCK)
+        Thread.start {
+            Thread.sleep(50)
+            s.pressure = 0.1
+            c.onSnapshotSaved()
+        }
+
+        when:
+        c.admit(s, false)
+
+        then:
+        s.snapshotRequests > 0
+    }
+
+    def "block times out"() {
+        def clock = new SnapshotSchedulerSpec.FakeClock()
+        def s = new FakeStore(pressure: 0.8, clock: clock)
+
+        when:
+        controller(KeyValueStore.Backpressure.BLOCK, clock).admit(s, false)
+
+        then:
+        def e = thrown(StoreOverloadedException)
+        e.message.contains("Timed out")
+        s.snapshotRequests == 2
+    }
+
+    def "write pressure drops after snapshot"() {
+        def store = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .txLogSizeM(1)
+                .backpressure(KeyValueStore.Backpressure.BLOCK)
+                .create()
+        def widgets = store.getMap("widgets")
+        def name = "x" * 1000
+
+        when:
+        for (int i = 0; i < 5000; i++) widgets.lowPriority().put("w" + (i % 100), new ModelObject(name))
+        double before = store.writePressure
+        // a background snapshot might be in progress in which case saveSnapshot is a NOP
+        for (int i = 0; i < 100 && store.writePressure > 0.0; i++) {
+            store.saveSnapshot()
+            Thread.sleep(10)
+        }
+        double after = store.writePressure
+        store.close()
+
+        then:
+        before < 0.8
+        after == 0.0
+    }
+}
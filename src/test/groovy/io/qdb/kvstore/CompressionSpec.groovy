@@ -0,0 +1,158 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Stepwise
+
+/**
+ * Compressed snapshots and tx log records.
+ */
+@Stepwise
+class CompressionSpec extends Specification {
+
+    @Shared File baseDir = new File("build/test-compression")
+
+    def setupSpec() {
+        if (baseDir.exists() && baseDir.isDirectory()) FileUtils.deleteDirectory(baseDir)
+    }
+
+    private static KeyValueStore<String, ModelObject> createStore(File dir, int level) {
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+                .compressionLevel(level)
+                .create()
+    }
+
+    private static void fill(KeyValueStore<String, ModelObject> store) {
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 1000; i++) widgets.put("w" + i, new ModelObject("widget number " + i))
+        store.saveSnapshot()
+        for (int i = 0; i < 100; i++) widgets.put("x" + i, new ModelObject("another widget " + i))
+    }
+
+    private static long txLogSize(File dir) {
+        long sz = 0
+        new File(dir, "txlog").listFiles().each { sz += it.length() }
+        return sz
+    }
+
+    def "compressed snapshot round trip"() {
+        def serializer = new GensonSerializer([moo: ModelObject.class])
+        def widgets = [:]
+        for (int i = 0; i < 2500; i++) widgets["w" + i] = new ModelObject("widget " + i)
+        File f = new File(baseDir, "round-trip.snapshot")
+        baseDir.mkdirs()
+        SnapshotFile.write(serializer, [widgets: widgets], f, null, 6, "hello".bytes)
+        def back = SnapshotFile.read(serializer, f)
+        def c = SnapshotFile.salvage(serializer, f)
+
+        expect:
+        back.widgets.size() == 2500
+        back.widgets.w99.name == "widget 99"
+        c.complete
+        c.chunks == 3
+    }
+
+    def "records are framed without looking at their content"() {
+        def codec = new TxLogCodec(new File(baseDir, "frame"), 0, [])
+        byte[] binary = [0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17] as byte[]
+        def r = codec.encode(binary)
+        def back = codec.decode(r.routingKey, r.payload).bytes
+        byte[] damaged = Arrays.copyOf(binary, binary.length)
+        damaged[3] = 99
+
+        when:
+        codec.decode(r.routingKey, damaged)
+
+        then:
+        r.routingKey.startsWith("p")
+        back == binary
+        codec.decode("", binary).bytes == binary
+        thrown(TxLogCodec.CorruptRecordException)
+    }
+
+    def "old dictionaries are deleted once the log no longer uses them"() {
+        File dir = new File(baseDir, "dicts")
+        def codec = new TxLogCodec(dir, 6, ["moo"])
+        codec.train(["widgets"])
+        def r = codec.encode(('{"@class":"tx","map":"widgets","op":"PUT","key":"1","value":{"@class":"moo",' +
+                '"name":"a widget"}}').bytes)
+        codec.onAppend(r, 10)
+        codec.train(["widgets", "gadgets"])
+        codec.deleteUnusedDictionaries(10)
+        int before = dir.list().length
+        codec.deleteUnusedDictionaries(11)
+        int after = dir.list().length
+        codec.close()
+
+        expect:
+        r.routingKey.startsWith("z")
+        before == 2
+        after == 1
+    }
+
+    def "compressed store is smaller"() {
+        File plainDir = new File(baseDir, "plain")
+        File zipDir = new File(baseDir, "zip")
+        def plain = createStore(plainDir, 0)
+        def zip = createStore(zipDir, 6)
+        fill(plain)
+        fill(zip)
+        plain.close()
+        zip.close()
+        def plainSnapshot = SnapshotFile.list(plainDir)[0]
+        def zipSnapshot = SnapshotFile.list(zipDir)[0]
+
+        expect:
+        zipSnapshot.length() * 5 < plainSnapshot.length()
+        txLogSize(zipDir) < txLogSize(plainDir)
+        new File(zipDir, "dict").list().length > 0
+    }
+
+    def "compressed store can be opened without compression"() {
+        def store = createStore(new File(baseDir, "zip"), 0)
+        def widgets = store.getMap("widgets")
+        def sz = widgets.size()
+        def w = widgets.get("x99")
+        store.close()
+
+        expect:
+        sz == 1100
+        w.name == "another widget 99"
+    }
+
+    def "uncompressed store can be opened with compression"() {
+        def store = createStore(new File(baseDir, "plain"), 9)
+        def widgets = store.getMap("widgets")
+        widgets.put("y", new ModelObject("why"))
+        store.close()
+        store = createStore(new File(baseDir, "plain"), 0)
+        def sz = store.getMap("widgets").size()
+        store.close()
+
+        expect:
+        sz == 1101
+    }
+
+    def "read only store decodes compressed records"() {
+        File dir = new File(baseDir, "zip")
+        def primary = createStore(dir, 6)
+        def secondary = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .readOnly(true)
+                .create()
+        primary.getMap("gadgets").put("g", new ModelObject("a new map"))
+        def copy = secondary.getMap("gadgets")
+        for (int i = 0; i < 100 && copy.get("g") == null; i++) Thread.sleep(20)
+        def g = copy.get("g")
+        secondary.close()
+        primary.close()
+
+        expect:
+        g.name == "a new map"
+    }
+}
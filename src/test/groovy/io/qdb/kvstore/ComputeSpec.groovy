@@ -0,0 +1,163 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Stepwise
+
+/**
+ * Atomic updates using registered update functions.
+ */
+@Stepwise
+class ComputeSpec extends Specification {
+
+    @Shared File dir = new File("build/test-compute")
+
+    static class Append implements KeyValueStore.UpdateFunction<String, ModelObject> {
+        ModelObject apply(String key, ModelObject existing, Object arg) {
+            return new ModelObject((existing == null ? "" : existing.name) + arg, existing == null ? 0 : existing.version)
+        }
+    }
+
+    static class Delete implements KeyValueStore.UpdateFunction<String, ModelObject> {
+        ModelObject apply(String key, ModelObject existing, Object arg) { return null }
+    }
+
+    def setupSpec() {
+        if (dir.exists() && dir.isDirectory()) FileUtils.deleteDirectory(dir)
+    }
+
+    private KeyValueStore<String, ModelObject> createStore(KeyValueStore.Listener listener = null) {
+        def b = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+                .updateFunction("append", new Append())
+                .updateFunction("delete", new Delete())
+        if (listener) b.listener(listener)
+        return b.create()
+    }
+
+    def "compute"() {
+        def events = []
+        def store = createStore(new KeyValueStore.ListenerAdapter<String, ModelObject>() {
+            void onObjectEvent(KeyValueStore.ObjectEvent<String, ModelObject> ev) { events << ev }
+        })
+        def widgets = store.getMap("widgets")
+        def a = widgets.compute("1", "append", "a")
+        def b = widgets.compute("1", "append", "b")
+        widgets.compute("2", "append", "z")
+        def gone = widgets.compute("2", "delete", null)
+        def get = widgets.get("1")
+        store.close()
+
+        expect:
+        a.name == "a"
+        a.version == 1
+        b.name == "ab"
+        b.version == 2
+        gone == null
+        get.name == "ab"
+        !widgets.containsKey("2")
+        events*.type == [KeyValueStore.ObjectEvent.Type.CREATED, KeyValueStore.ObjectEvent.Type.UPDATED,
+                KeyValueStore.ObjectEvent.Type.CREATED, KeyValueStore.ObjectEvent.Type.DELETED]
+    }
+
+    def "compute is replayed from tx log"() {
+        def store = createStore()
+        def widgets = store.getMap("widgets")
+        def get = widgets.get("1")
+        def sz = widgets.size()
+        store.close()
+
+        expect:
+        get.name == "ab"
+        get.version == 2
+        sz == 1
+    }
+
+    def "concurrent compute"() {
+        def store = createStore()
+        def widgets = store.getMap("widgets")
+        def threads = (1..4).collect { Thread.start { 100.times { widgets.compute("c", "append", "x") } } }
+        threads*.join()
+        def get = widgets.get("c")
+        store.close()
+
+        expect:
+        get.name.length() == 400
+        get.version == 400
+    }
+
+    def "function sees the same argument type live and on replay"() {
+        def types = []
+        def b = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(new File(dir, "types"))
+                .alias("moo", ModelObject.class)
+                .updateFunction("type", new KeyValueStore.UpdateFunction<String, ModelObject>() {
+                    ModelObject apply(String key, ModelObject existing, Object arg) {
+                        types << arg.getClass()
+                        return new ModelObject(arg.getClass().simpleName)
+                    }
+                })
+        def store = b.create()
+        store.getMap("widgets").compute("1", "type", 42)
+        store.close()
+        b.create().close()
+
+        expect:
+        types.size() == 2
+        types[0] == types[1]
+    }
+
+    def "existing is only copied for maps with copying enabled"() {
+        def copies = 0
+        def store = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(new File(dir, "copy"))
+                .alias("moo", ModelObject.class)
+                .valueCopier(new KeyValueStore.ValueCopier<ModelObject>() {
+                    ModelObject copy(ModelObject value) { ++copies; return new ModelObject(value.name) }
+                })
+                .copyOnWrite(false).copyOnWrite("safe", true).copyOnRead("read", true)
+                .updateFunction("append", new Append())
+                .create()
+        def counts = [:]
+        ["plain", "safe", "read"].each { map ->
+            store.getMap(map).compute("1", "append", "a")
+            int before = copies
+            store.getMap(map).compute("1", "append", "b")
+            counts[map] = copies - before
+        }
+        store.close()
+
+        expect:
+        counts == [plain: 0, safe: 1, read: 2]  // read also copies the value returned by compute
+    }
+
+    def "store using an unregistered function does not open"() {
+        when:
+        new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .updateFunction("append", new Append())
+                .create()
+
+        then:
+        def e = thrown(IOException)
+        e.message.contains("[delete]")
+    }
+
+    def "unknown function"() {
+        def store = createStore()
+
+        when:
+        try {
+            store.getMap("widgets").compute("1", "nope", null)
+        } finally {
+            store.close()
+        }
+
+        then:
+        thrown(KeyValueStoreException)
+    }
+}
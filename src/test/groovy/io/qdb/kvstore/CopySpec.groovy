@@ -0,0 +1,159 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+/**
+ * Copy on read and write.
+ */
+class CopySpec extends Specification {
+
+    static class Widget {
+        int version
+        String name
+        List<String> tags = []
+        Map<String, Widget> parts = [:]
+        Widget self
+        private Widget() { }
+        Widget(String name) { this.name = name }
+    }
+
+    static class Holder {
+        Object value
+        private Holder() { }
+        Holder(Object value) { this.value = value }
+    }
+
+    private KeyValueStore<String, ModelObject> createStore(String name, boolean copyOnRead, boolean copyOnWrite) {
+        return builder(name).copyOnRead(copyOnRead).copyOnWrite(copyOnWrite).create()
+    }
+
+    private KeyValueStoreBuilder<String, ModelObject> builder(String name) {
+        File dir = new File("build/test-copy/" + name)
+        if (dir.exists() && dir.isDirectory()) FileUtils.deleteDirectory(dir)
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+    }
+
+    def "FieldValueCopier makes deep copies"() {
+        def w = new Widget("one")
+        w.tags << "a"
+        w.parts.put("p", new Widget("part"))
+        w.self = w
+        def c = new FieldValueCopier<Widget>().copy(w)
+
+        expect:
+        !c.is(w)
+        c.name == "one"
+        c.tags == ["a"]
+        !c.tags.is(w.tags)
+        c.parts.p.name == "part"
+        !c.parts.p.is(w.parts.p)
+        c.self.is(c)
+    }
+
+    def "FieldValueCopier skips immutable types"() {
+        def w = new Widget("one")
+        def c = new FieldValueCopier<Widget>([Widget]).copy(w)
+
+        expect:
+        c.is(w)
+    }
+
+    def "FieldValueCopier handles JDK types"() {
+        def copier = new FieldValueCopier<Holder>()
+        def c = copier.copy(new Holder(value))
+
+        expect:
+        c.value == value
+        c.value.getClass() == (type ?: value.getClass())
+        c.value.is(value) == same
+
+        where:
+        value                                                                       | same  | type
+        UUID.randomUUID()                                                           | true  | null
+        new BigDecimal("1.5")                                                       | true  | null
+        Locale.UK                                                                   | true  | null
+        new URI("http://example.com/")                                              | true  | null
+        new Date(1234)                                                              | false | null
+        Calendar.getInstance()                                                      | false | null
+        EnumSet.of(StoreTx.Operation.PUT)                                           | false | null
+        new EnumMap(StoreTx.Operation).with { put(StoreTx.Operation.PUT, [1]); it } | false | null
+        new ArrayList([1, 2])                                                       | false | null
+        Collections.unmodifiableList([1, 2])                                        | false | ArrayList
+        Arrays.asList("a", "b")                                                     | false | ArrayList
+    }
+
+    def "FieldValueCopier deep copies EnumMap values"() {
+        def m = new EnumMap(StoreTx.Operation)
+        m.put(StoreTx.Operation.PUT, new Widget("w"))
+        def c = new FieldValueCopier<Holder>().copy(new Holder(m))
+
+        expect:
+        c.value instanceof EnumMap
+        c.value[StoreTx.Operation.PUT].name == "w"
+        !c.value[StoreTx.Operation.PUT].is(m[StoreTx.Operation.PUT])
+    }
+
+    def "FieldValueCopier refuses to copy JDK internals"() {
+        when:
+        new FieldValueCopier<Holder>().copy(new Holder(new StringBuilder("x")))
+
+        then:
+        def e = thrown(KeyValueStoreException)
+        e.message.contains("java.lang.StringBuilder")
+    }
+
+    def "copyOnRead and copyOnWrite can be set per map"() {
+        def store = builder("per-map").copyOnWrite(true).copyOnWrite("shared", false).copyOnRead("safe", true)
+                .create()
+        def w1 = new ModelObject("one")
+        def w2 = new ModelObject("two")
+        store.getMap("widgets").put("1", w1)
+        store.getMap("shared").put("2", w2)
+        store.getMap("safe").put("3", new ModelObject("three"))
+        def widget = store.getMap("widgets").get("1")
+        def shared = store.getMap("shared").get("2")
+        def safe = store.getMap("safe")
+        def same = safe.get("3").is(safe.get("3"))
+        store.close()
+
+        expect:
+        !widget.is(w1)
+        shared.is(w2)
+        !same
+    }
+
+    def "copyOnWrite"() {
+        def store = createStore("write", false, true)
+        def widgets = store.getMap("widgets")
+        def w = new ModelObject("one")
+        widgets.put("1", w)
+        w.name = "changed"
+        def get = widgets.get("1")
+        store.close()
+
+        expect:
+        w.version == 1
+        get.name == "one"
+        get.version == 1
+        get.is(widgets.get("1"))
+    }
+
+    def "copyOnRead"() {
+        def store = createStore("read", true, false)
+        def widgets = store.getMap("widgets")
+        widgets.put("1", new ModelObject("one"))
+        widgets.get("1").name = "changed"
+        widgets.values().iterator().next().name = "changed"
+        widgets.entrySet().iterator().next().value.name = "changed"
+        def get = widgets.get("1")
+        store.close()
+
+        expect:
+        get.name == "one"
+        !get.is(widgets.get("1"))
+    }
+}
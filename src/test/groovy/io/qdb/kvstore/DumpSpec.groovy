@@ -0,0 +1,197 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Exporting and importing stores.
+ */
+class DumpSpec extends Specification {
+
+    @Shared File baseDir = new File("build/test-dump")
+    @Shared KeyValueStoreSerializer serializer = new GensonSerializer(["moo": ModelObject])
+
+    private KeyValueStore<String, ModelObject> createStore(File dir, boolean nuke = true) {
+        if (nuke && dir.exists() && dir.isDirectory()) FileUtils.deleteDirectory(dir)
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .serializer(serializer)
+                .versionProvider(new VersionProvider())
+                .create()
+    }
+
+    private void fill(KeyValueStore<String, ModelObject> store) {
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 25; i++) widgets.put("w" + i, new ModelObject("widget" + i))
+        store.getMap("bugs").put("b1", new ModelObject("bug1"))
+    }
+
+    private void check(KeyValueStore<String, ModelObject> store) {
+        assert store.mapNames.sort() == ["bugs", "widgets"]
+        def widgets = store.getMap("widgets")
+        assert widgets.size() == 25
+        assert widgets.get("w7").name == "widget7"
+        assert widgets.get("w7").version == 1
+        assert store.getMap("bugs").get("b1").name == "bug1"
+    }
+
+    private static Map<String, String> contents(KeyValueStore<String, ModelObject> store) {
+        def ans = [:]
+        for (String name : store.mapNames) {
+            store.getMap(name).each { k, v -> ans[name + "." + k] = v.name + "/" + v.version }
+        }
+        return ans
+    }
+
+    def "export and import lines"() {
+        def store = createStore(new File(baseDir, "src-lines"))
+        fill(store)
+        def bos = new ByteArrayOutputStream()
+        def dump = new KeyValueStoreDump(serializer).threads(3).chunkSize(4).maxChunksInFlight(2)
+        def exported = dump.exportStore(store, bos, KeyValueStoreDump.Format.LINES)
+        store.close()
+
+        def dir = new File(baseDir, "dst-lines")
+        if (dir.exists()) FileUtils.deleteDirectory(dir)
+        def imported = dump.importStore(new ByteArrayInputStream(bos.toByteArray()), KeyValueStoreDump.Format.LINES, dir)
+        store = createStore(dir, false)
+        check(store)
+        store.close()
+
+        expect:
+        exported == 26
+        imported == 26
+        new String(bos.toByteArray(), "UTF8").readLines().size() == 26
+    }
+
+    def "export and import snapshot"() {
+        def store = createStore(new File(baseDir, "src-snapshot"))
+        fill(store)
+        def bos = new ByteArrayOutputStream()
+        def dump = new KeyValueStoreDump(serializer)
+        def exported = dump.exportStore(store, bos, KeyValueStoreDump.Format.SNAPSHOT)
+        store.close()
+
+        def dir = new File(baseDir, "dst-snapshot")
+        if (dir.exists()) FileUtils.deleteDirectory(dir)
+        def imported = dump.importStore(new ByteArrayInputStream(bos.toByteArray()), KeyValueStoreDump.Format.SNAPSHOT, dir)
+        store = createStore(dir, false)
+        check(store)
+        store.getMap("bugs").put("b2", new ModelObject("bug2"))
+        store.close()
+        store = createStore(dir, false)
+        def b2 = store.getMap("bugs").get("b2")
+        store.close()
+
+        expect:
+        exported == 26
+        imported == 26
+        b2.name == "bug2"
+    }
+
+    def "export directory applies tx log without opening store"() {
+        File src = new File(baseDir, "src-dir")
+        if (src.exists()) FileUtils.deleteDirectory(src)
+        def store = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(src).serializer(serializer).versionProvider(new VersionProvider())
+                .updateFunction("append", new ComputeSpec.Append())
+                .create()
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 2500; i++) widgets.put("w" + i, new ModelObject("widget" + i))
+        store.getMap("empty").put("x", new ModelObject("x"))
+        store.saveSnapshot()
+        widgets.put("w1", new ModelObject("changed", 1))
+        widgets.remove("w2")
+        widgets.compute("w3", "append", "!")
+        widgets.compute("new", "append", "fresh")
+        widgets.replace("missing", new ModelObject("nope"))
+        store.getMap("empty").remove("x")
+        store.getMap("bugs").put("b1", new ModelObject("bug1"))
+        def expected = contents(store)
+        def files = src.list().sort()
+        def bos = new ByteArrayOutputStream()
+        def dump = new KeyValueStoreDump(serializer).chunkSize(7).versionProvider(new VersionProvider())
+                .updateFunction("append", new ComputeSpec.Append())
+        def exported = dump.exportDir(src, bos, format)
+        store.close()
+
+        def dir = new File(baseDir, "dst-dir-" + format)
+        if (dir.exists()) FileUtils.deleteDirectory(dir)
+        def imported = dump.importStore(new ByteArrayInputStream(bos.toByteArray()), format, dir)
+        def copy = createStore(dir, false)
+        def actual = contents(copy)
+        copy.close()
+
+        expect:
+        files.contains("txlog")
+        exported == 2501
+        imported == 2501
+        actual == expected
+        actual["widgets.w1"] == "changed/2"
+        actual["widgets.w3"] == "widget3!/2"
+
+        where:
+        format << [KeyValueStoreDump.Format.LINES, KeyValueStoreDump.Format.SNAPSHOT]
+    }
+
+    def "export partitioned directory with separate snapshot dir"() {
+        File src = new File(baseDir, "src-partitioned")
+        File sd = new File(baseDir, "src-partitioned-snapshots")
+        [src, sd].each { if (it.exists()) FileUtils.deleteDirectory(it) }
+        def store = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(src).snapshotDir(sd).partitions(3).serializer(serializer).versionProvider(new VersionProvider())
+                .create()
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 200; i++) widgets.put("w" + i, new ModelObject("widget" + i))
+        store.saveSnapshot()
+        widgets.put("w1", new ModelObject("changed", 1))
+        widgets.remove("w2")
+        store.getMap("bugs").put("b1", new ModelObject("bug1"))
+        def expected = contents(store)
+        def bos = new ByteArrayOutputStream()
+        def dump = new KeyValueStoreDump(serializer).versionProvider(new VersionProvider())
+        def exported = dump.exportDir(src, sd, bos, KeyValueStoreDump.Format.LINES)
+        store.close()
+
+        def dir = new File(baseDir, "dst-partitioned")
+        if (dir.exists()) FileUtils.deleteDirectory(dir)
+        dump.importStore(new ByteArrayInputStream(bos.toByteArray()), KeyValueStoreDump.Format.LINES, dir)
+        def copy = createStore(dir, false)
+        def actual = contents(copy)
+        copy.close()
+
+        expect:
+        SnapshotFile.list(src).length == 0
+        exported == 200
+        actual == expected
+    }
+
+    def "export directory fails on unregistered update function"() {
+        File src = new File(baseDir, "src-fn")
+        if (src.exists()) FileUtils.deleteDirectory(src)
+        def store = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(src).serializer(serializer).versionProvider(new VersionProvider())
+                .updateFunction("append", new ComputeSpec.Append())
+                .create()
+        store.getMap("widgets").compute("w1", "append", "a")
+        store.close()
+
+        when:
+        new KeyValueStoreDump(serializer).exportDir(src, new ByteArrayOutputStream(), KeyValueStoreDump.Format.LINES)
+
+        then:
+        def e = thrown(IOException)
+        e.message.contains("[append]")
+    }
+
+    def "import into store with data fails"() {
+        def dir = new File(baseDir, "dst-snapshot")
+
+        when:
+        new KeyValueStoreDump(serializer).importStore(new ByteArrayInputStream("".bytes), KeyValueStoreDump.Format.LINES, dir)
+
+        then:
+        thrown(IOException)
+    }
+}
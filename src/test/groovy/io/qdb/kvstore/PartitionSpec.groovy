@@ -0,0 +1,135 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Stepwise
+
+/**
+ * Partitioned stores.
+ */
+@Stepwise
+class PartitionSpec extends Specification {
+
+    @Shared File baseDir = new File("build/test-partitions")
+    @Shared File dir = new File(baseDir, "store")
+
+    def setupSpec() {
+        if (baseDir.exists()) FileUtils.deleteDirectory(baseDir)
+    }
+
+    private KeyValueStoreBuilder<String, ModelObject> builder() {
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+    }
+
+    private static Map<String, Long> listing(File d) {
+        def ans = [:]
+        d.eachFileRecurse { f -> if (f.name != "lock") ans[f.path] = f.length() }
+        return ans
+    }
+
+    def "put and get across partitions"() {
+        def events = []
+        def store = builder().partitions(4).listener(new KeyValueStore.ListenerAdapter<String, ModelObject>() {
+            void onObjectEvent(KeyValueStore.ObjectEvent<String, ModelObject> ev) { events << ev }
+        }).create()
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 50; i++) widgets.put("w" + i, new ModelObject("widget" + i))
+        store.getMap("bugs").put("b1", new ModelObject("bug1"))
+        def used = store.partitions.findAll { !it.isEmpty() }.size()
+        def sz = widgets.size()
+        def keys = widgets.keySet().sort()
+        def values = widgets.values().size()
+        def entries = widgets.entrySet().size()
+        def names = store.mapNames.sort()
+        def w7 = widgets.get("w7")
+        def count = widgets.query().count()
+        def partitionQueryPools = store.partitions.findAll { it.@queryPool != null }.size()
+        store.close()
+
+        expect:
+        store instanceof PartitionedKeyValueStore
+        used == 4
+        sz == 50
+        keys.size() == 50
+        keys.contains("w49")
+        values == 50
+        entries == 50
+        names == ["bugs", "widgets"]
+        w7.name == "widget7"
+        w7.version == 1
+        count == 50
+        partitionQueryPools == 0
+        events.size() == 51
+        events[0].store.is(store)
+    }
+
+    def "reopen and snapshot"() {
+        def store = builder().create()
+        def sz = store.getMap("widgets").size()
+        store.saveSnapshot()
+        store.close()
+        def snapshots = new File(dir, "p0").list(new RegexFilenameFilter(".+\\.snapshot")).length
+
+        expect:
+        sz == 50
+        snapshots == 1
+    }
+
+    def "partition count cannot change"() {
+        when:
+        builder().partitions(3).create()
+
+        then:
+        thrown(IOException)
+    }
+
+    def "repartition"() {
+        def dirs = (0..<3).collect { new File(baseDir, "new" + it) } as File[]
+        def before = (0..<4).collect { listing(new File(dir, "p" + it)) }
+        PartitionedKeyValueStore.repartition(builder(), dirs)
+        def after = (0..<4).collect { listing(new File(dir, "p" + it)) }
+        def store = builder().create()
+        def count = store.partitions.size()
+        def sz = store.getMap("widgets").size()
+        def b1 = store.getMap("bugs").get("b1")
+        store.getMap("widgets").put("w50", new ModelObject("widget50"))
+        store.close()
+        store = builder().create()
+        def sz2 = store.getMap("widgets").size()
+        store.close()
+
+        expect:
+        after == before
+        count == 3
+        sz == 50
+        b1.name == "bug1"
+        sz2 == 51
+    }
+
+    def "repartition with a separate snapshot dir"() {
+        def d = new File(baseDir, "sd-store")
+        def sd = new File(baseDir, "sd-snapshots")
+        def b = builder().dir(d).snapshotDir(sd)
+        def store = b.partitions(2).create()
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 200; i++) widgets.put("w" + i, new ModelObject("widget" + i))
+        store.saveSnapshot()
+        store.close()
+        PartitionedKeyValueStore.repartition(b, (0..<3).collect { new File(baseDir, "sd-new" + it) } as File[])
+        store = builder().dir(d).snapshotDir(sd).create()
+        widgets = store.getMap("widgets")
+        def sz = widgets.size()
+        def found = (0..<200).findAll { widgets.get("w" + it)?.name == "widget" + it }.size()
+        def snapshots = (0..<3).collect { SnapshotFile.list(new File(sd, "p" + it))*.name }
+        store.close()
+
+        expect:
+        sz == 200
+        found == 200
+        snapshots.every { it == ["0000000000000001.snapshot"] }
+    }
+}
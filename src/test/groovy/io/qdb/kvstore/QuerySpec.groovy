@@ -0,0 +1,92 @@
+package io.qdb.kvstore
+
+import com.google.common.base.Function
+import com.google.common.base.Predicate
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Parallel queries over map contents.
+ */
+class QuerySpec extends Specification {
+
+    @Shared KeyValueStore<String, ModelObject> store
+    @Shared KeyValueMap<String, ModelObject> widgets
+
+    def setupSpec() {
+        def dir = new File("build/test-query")
+        if (dir.exists() && dir.isDirectory()) FileUtils.deleteDirectory(dir)
+        store = new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+                .queryThreads(4)
+                .create()
+        widgets = store.getMap("widgets")
+        for (int i = 0; i < 5000; i++) widgets.put("w" + i, new ModelObject("widget" + i, i % 10))
+    }
+
+    def cleanupSpec() {
+        store.close()
+    }
+
+    private static Predicate<Map.Entry<String, ModelObject>> versionBelow(int v) {
+        return { Map.Entry<String, ModelObject> e -> e.value.version < v } as Predicate
+    }
+
+    def "count"() {
+        expect:
+        widgets.query().count() == 5000
+        widgets.query().where(versionBelow(3)).count() == 1000
+        store.getMap("bugs").query().count() == 0
+    }
+
+    def "limit"() {
+        expect:
+        widgets.query().where(versionBelow(3)).limit(10).list().size() == 10
+        widgets.query().limit(7).count() == 7
+    }
+
+    def "select and sum"() {
+        def names = widgets.query().where(versionBelow(3)).select({ it.value.name } as Function)
+        def sum = widgets.query().sum({ it.value.version } as Function)
+
+        expect:
+        names.size() == 1000
+        names.contains("widget11")
+        sum == (1..9).sum() * 500 + 5000
+    }
+
+    def "group by"() {
+        def counts = widgets.query().countBy({ it.value.version } as Function)
+        def sums = widgets.query().sumBy({ it.value.version % 2 } as Function, { 1 } as Function)
+
+        expect:
+        counts.size() == 10
+        counts[1] == 500
+        sums[0] == 2500.0
+    }
+
+    def "top"() {
+        def top = widgets.query().top(3,
+                { a, b -> b.value.version <=> a.value.version ?: a.key <=> b.key } as Comparator)
+
+        expect:
+        top*.key == ["w1009", "w1019", "w1029"]
+        top*.value*.version == [10, 10, 10]
+    }
+
+    def "top ranks all matching entries before applying limit"() {
+        def top = widgets.query().limit(2).top(3,
+                { a, b -> b.value.version <=> a.value.version ?: a.key <=> b.key } as Comparator)
+
+        expect:
+        top*.key == ["w1009", "w1019"]
+    }
+
+    def "consistent query"() {
+        expect:
+        widgets.query().consistent(true).where(versionBelow(3)).count() == 1000
+    }
+}
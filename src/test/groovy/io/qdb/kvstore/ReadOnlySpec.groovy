@@ -0,0 +1,146 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Read only stores following a store open for writing in the same directory.
+ */
+class ReadOnlySpec extends Specification {
+
+    @Shared File baseDir = new File("build/test-readonly")
+
+    def setupSpec() {
+        if (baseDir.exists() && baseDir.isDirectory()) FileUtils.deleteDirectory(baseDir)
+    }
+
+    private static KeyValueStoreBuilder<String, ModelObject> builder(File dir) {
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .txLogSizeM(1)
+    }
+
+    private static boolean waitFor(Closure<Boolean> cond) {
+        for (int i = 0; i < 500; i++) {
+            if (cond()) return true
+            Thread.sleep(20)
+        }
+        return false
+    }
+
+    def "read only store follows primary"() {
+        File dir = new File(baseDir, "follow")
+        def primary = builder(dir).create()
+        def widgets = primary.getMap("widgets")
+        widgets.put("1", new ModelObject("one"))
+        primary.saveSnapshot()
+        widgets.put("2", new ModelObject("two"))
+
+        def events = []
+        def secondary = builder(dir).readOnly(true).tailIntervalMs(10)
+                .listener(new KeyValueStore.ListenerAdapter<String, ModelObject>() {
+                    void onObjectEvent(KeyValueStore.ObjectEvent<String, ModelObject> ev) { events << ev }
+                }).create()
+        def copy = secondary.getMap("widgets")
+        def initial = new HashMap(copy)
+
+        widgets.put("3", new ModelObject("three"))
+        widgets.remove("1")
+        boolean caughtUp = waitFor { copy.size() == 2 && copy.get("3") != null }
+
+        when:
+        copy.put("4", new ModelObject("four"))
+
+        then:
+        thrown(KeyValueStoreException)
+        initial.keySet() == ["1", "2"] as Set
+        caughtUp
+        copy.keySet() == ["2", "3"] as Set
+        events.collect { it.type.toString() + " " + it.key } == ["CREATED 3", "DELETED 1"]
+
+        cleanup:
+        secondary.close()
+        primary.close()
+    }
+
+    def "read only store reloads snapshot after tx log rollover"() {
+        File dir = new File(baseDir, "rollover")
+        def primary = builder(dir).create()
+        def widgets = primary.getMap("widgets")
+        widgets.put("0", new ModelObject("zero"))
+        primary.saveSnapshot()
+        def secondary = builder(dir).readOnly(true).tailIntervalMs(500).create()
+        def copy = secondary.getMap("widgets")
+
+        // write several times the size of the tx log before the secondary polls
+        def name = "x" * 1000
+        for (int i = 0; i < 5000; i++) widgets.put("w" + (i % 50), new ModelObject(name + i))
+        primary.saveSnapshot()
+        boolean caughtUp = waitFor { copy.size() == widgets.size() && copy.get("w49") == widgets.get("w49") }
+
+        expect:
+        caughtUp
+        new HashMap(copy) == new HashMap(widgets)
+
+        cleanup:
+        secondary.close()
+        primary.close()
+    }
+
+    def "read only store does not need write access or a lock"() {
+        File dir = new File(baseDir, "nolock")
+        def primary = builder(dir).create()
+        def widgets = primary.getMap("widgets")
+        widgets.put("1", new ModelObject("one"))
+        widgets.put("2", new ModelObject("two"))
+        primary.saveSnapshot()
+        def a = builder(dir).readOnly(true).create()
+        def b = builder(dir).readOnly(true).create()
+
+        expect:
+        a.getMap("widgets").size() == 2
+        b.getMap("widgets").size() == 2
+
+        cleanup:
+        a.close()
+        b.close()
+        primary.close()
+    }
+
+    def "read only store reloads snapshot when tx log is truncated"() {
+        File dir = new File(baseDir, "truncated")
+        def primary = builder(dir).create()
+        def widgets = primary.getMap("widgets")
+        widgets.put("1", new ModelObject("one"))
+        primary.saveSnapshot()
+        widgets.put("2", new ModelObject("two"))
+        widgets.put("3", new ModelObject("three"))
+        primary.close()
+
+        def secondary = builder(dir).readOnly(true).tailIntervalMs(10).create()
+        def copy = secondary.getMap("widgets")
+        boolean caughtUp = waitFor { copy.size() == 3 }
+
+        // chop off the last record like the writer does when it restarts after a crash
+        def t = new TxLogTailer(new File(dir, "txlog"), 0)
+        long lastId = 0
+        while (t.next()) lastId = t.id
+        t.close()
+        File f = new File(dir, "txlog").listFiles().find { it.name.endsWith(".qdb") }
+        long fileId = Long.parseLong(f.name.substring(0, f.name.indexOf('-')), 16)
+        def raf = new RandomAccessFile(f, "rw")
+        raf.setLength(4096 + lastId - fileId)
+        raf.close()
+        boolean reloaded = waitFor { secondary.getMap("widgets").size() == 2 }
+
+        expect:
+        caughtUp
+        reloaded
+        secondary.getMap("widgets").keySet() == ["1", "2"] as Set
+
+        cleanup:
+        secondary.close()
+    }
+}
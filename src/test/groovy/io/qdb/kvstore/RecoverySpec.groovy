@@ -0,0 +1,172 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Opening stores with damaged snapshots and tx logs.
+ */
+class RecoverySpec extends Specification {
+
+    @Shared File baseDir = new File("build/test-recovery")
+
+    def setupSpec() {
+        if (baseDir.exists() && baseDir.isDirectory()) FileUtils.deleteDirectory(baseDir)
+    }
+
+    private static KeyValueStoreBuilder<String, ModelObject> builder(File dir) {
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+    }
+
+    private File createStore(String name) {
+        File dir = new File(baseDir, name)
+        def store = builder(dir).create()
+        def widgets = store.getMap("widgets")
+        for (int i = 0; i < 2500; i++) widgets.put("w" + i, new ModelObject("widget " + i))
+        store.saveSnapshot()
+        store.close()
+        return dir
+    }
+
+    private static void damageSnapshot(File dir) {
+        def raf = new RandomAccessFile(SnapshotFile.list(dir)[0], "rw")
+        raf.seek(raf.length() - 100)
+        int b = raf.read()
+        raf.seek(raf.length() - 100)
+        raf.write(b ^ 0xff)
+        raf.close()
+    }
+
+    def "snapshot is read in chunks"() {
+        File dir = createStore("chunks")
+        def c = SnapshotFile.salvage(new GensonSerializer([moo: ModelObject.class]), SnapshotFile.list(dir)[0])
+
+        expect:
+        c.complete
+        c.chunks == 3
+        c.entries == 2500
+        c.maps.widgets.size() == 2500
+    }
+
+    def "damaged snapshot is skipped when tx log covers everything"() {
+        File dir = createStore("replay")
+        damageSnapshot(dir)
+        def store = builder(dir).create()
+        def sz = store.getMap("widgets").size()
+        RecoveryReport r = store.recoveryReport
+        store.close()
+
+        expect:
+        sz == 2500
+        r.lossless
+        r.snapshot == null
+        r.replayed == 2500
+        r.rejectedSnapshots.size() == 1
+        r.rejectedSnapshots[0].contains("damaged after 2 chunk(s)")
+    }
+
+    def "damaged snapshot is salvaged up to last good chunk"() {
+        File dir = createStore("salvage")
+        FileUtils.deleteDirectory(new File(dir, "txlog"))
+        damageSnapshot(dir)
+        def store = builder(dir).salvage(true).create()
+        def sz = store.getMap("widgets").size()
+        RecoveryReport r = store.recoveryReport
+        store.close()
+
+        expect:
+        sz == 2000
+        !r.lossless
+        r.snapshotChunks == 2
+        r.snapshotEntries == 2000
+        r.snapshotBytesLost > 0
+        r.snapshotError.contains("Checksum mismatch")
+        r.toString().contains("salvaged 2 chunk(s)")
+    }
+
+    def "damaged snapshot with an empty tx log is salvaged"() {
+        // imported and repartitioned stores start with a single snapshot with id 1 and no tx log
+        File dir = new File(baseDir, "imported")
+        dir.mkdirs()
+        def widgets = [:]
+        for (int i = 0; i < 2500; i++) widgets["w" + i] = new ModelObject("widget " + i)
+        SnapshotFile.write(new GensonSerializer([moo: ModelObject.class]), [widgets: widgets],
+                SnapshotFile.forId(dir, 1))
+        damageSnapshot(dir)
+        def store = builder(dir).salvage(true).create()
+        def sz = store.getMap("widgets").size()
+        RecoveryReport r = store.recoveryReport
+        store.close()
+
+        expect:
+        sz == 2000
+        !r.lossless
+        r.snapshot.name == "0000000000000001.snapshot"
+        r.snapshotEntries == 2000
+        r.logGapBytes == 0
+        !r.toString().contains("tx log missing")
+    }
+
+    def "salvage is off by default"() {
+        File dir = createStore("strict")
+        FileUtils.deleteDirectory(new File(dir, "txlog"))
+        damageSnapshot(dir)
+
+        when:
+        builder(dir).create()
+
+        then:
+        thrown(IOException)
+    }
+
+    def "unreadable tx is skipped"() {
+        File dir = new File(baseDir, "badtx")
+        def store = builder(dir).create()
+        def widgets = store.getMap("widgets")
+        widgets.put("a", new ModelObject("a"))
+        widgets.put("bad", new ModelObject("bad"))
+        widgets.put("c", new ModelObject("c"))
+        store.close()
+        File f = new File(dir, "txlog").listFiles()[0]
+        byte[] data = f.bytes
+        String s = new String(data, "ISO-8859-1")
+        int i = s.indexOf('"key":"bad"')
+        for (int j = 0; j < 11; j++) data[i + j] = (byte)'#'
+        f.bytes = data
+        store = builder(dir).salvage(true).create()
+        def keys = new HashSet(store.getMap("widgets").keySet())
+        RecoveryReport r = store.recoveryReport
+        store.close()
+
+        expect:
+        i > 0
+        keys == ["a", "c"] as Set
+        r.skippedTxIds.size() == 1
+        r.replayed == 2
+        !r.lossless
+    }
+
+    def "store with a missing alias refuses to open"() {
+        File dir = new File(baseDir, "alias-" + snapshot)
+        def store = builder(dir).create()
+        store.getMap("widgets").put("a", new ModelObject("a"))
+        if (snapshot) store.saveSnapshot()
+        store.getMap("widgets").put("b", new ModelObject("b"))
+        store.close()
+        def files = SnapshotFile.list(dir)*.name
+
+        when:
+        new KeyValueStoreBuilder<String, ModelObject>().dir(dir).salvage(true).create()
+
+        then:
+        thrown(IOException)
+        SnapshotFile.list(dir)*.name == files
+
+        where:
+        snapshot << [true, false]
+    }
+}
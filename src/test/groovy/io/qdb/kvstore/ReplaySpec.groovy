@@ -0,0 +1,104 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Stepwise
+
+/**
+ * Replaying the tx log of a store into a new store.
+ */
+@Stepwise
+class ReplaySpec extends Specification {
+
+    @Shared File baseDir = new File("build/test-replay")
+
+    def setupSpec() {
+        if (baseDir.exists() && baseDir.isDirectory()) FileUtils.deleteDirectory(baseDir)
+        def store = builder(new File(baseDir, "source")).create()
+        def widgets = store.getMap("widgets")
+        widgets.put("1", new ModelObject("one"))
+        widgets.put("2", new ModelObject("two"))
+        store.saveSnapshot()
+        widgets.put("3", new ModelObject("three"))
+        widgets.remove("1")
+        Thread.sleep(200)
+        widgets.replace("2", new ModelObject("two", 1))
+        store.close()
+    }
+
+    private static KeyValueStoreBuilder<String, ModelObject> builder(File dir) {
+        return new KeyValueStoreBuilder<String, ModelObject>()
+                .dir(dir)
+                .alias("moo", ModelObject.class)
+                .versionProvider(new VersionProvider())
+    }
+
+    def "replay flat out"() {
+        File dir = new File(baseDir, "fast")
+        def report = new WorkloadReplayer().speed(0).replay(new File(baseDir, "source"), builder(dir))
+        def store = builder(dir).create()
+        def widgets = new HashMap(store.getMap("widgets"))
+        store.close()
+
+        expect:
+        report.transactions == 3
+        report.errors == 0
+        report.toString().contains("transactions: 3")
+        widgets.keySet() == ["2", "3"] as Set
+        widgets["2"].version == 2
+    }
+
+    def "replay at multiple of original speed"() {
+        def clock = new SnapshotSchedulerSpec.FakeClock()
+        def report = new WorkloadReplayer(clock).speed(2).replay(new File(baseDir, "source"),
+                builder(new File(baseDir, "slow")))
+
+        expect:
+        report.transactions == 3
+        // the last tx was written at least 200ms after the first
+        clock.slept >= 99
+        report.elapsedMs == clock.slept
+    }
+
+    def "replay with readers"() {
+        def report = new WorkloadReplayer().speed(0).readers(2).readsPerSec(100).replay(new File(baseDir, "source"),
+                builder(new File(baseDir, "readers")))
+
+        expect:
+        report.transactions == 3
+        report.reads >= 2
+    }
+
+    def "latency histogram"() {
+        def a = new WorkloadReplayer.Latencies()
+        def b = new WorkloadReplayer.Latencies()
+        for (long i = 1; i <= 10000; i++) (i % 2 ? a : b).add(i * 1000)
+        a.addAll(b)
+
+        expect:
+        a.count() == 10000
+        Math.abs(a.percentile(50) - 5000000) <= 5000000 / 16
+        Math.abs(a.percentile(99) - 9900000) <= 9900000 / 16
+        a.percentile(100) == 10000000
+        new WorkloadReplayer.Latencies().percentile(50) == 0
+    }
+
+    def "small latencies are exact"() {
+        def l = new WorkloadReplayer.Latencies()
+        for (long i = 0; i < 100; i++) l.add(i % 10)
+
+        expect:
+        l.percentile(10) == 0
+        l.percentile(50) == 4
+        l.percentile(100) == 9
+    }
+
+    def "target must be empty"() {
+        when:
+        new WorkloadReplayer().speed(0).replay(new File(baseDir, "source"), builder(new File(baseDir, "fast")))
+
+        then:
+        thrown(IOException)
+    }
+}
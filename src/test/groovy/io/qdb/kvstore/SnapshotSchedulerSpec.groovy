@@ -0,0 +1,182 @@
+package io.qdb.kvstore
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+
+/**
+ * Deciding when to take snapshots and how fast to write them. A fake clock is used so nothing waits.
+ */
+class SnapshotSchedulerSpec extends Specification {
+
+    static final long M = 1000000L
+
+    static class FakeClock implements Clock {
+        long nanos = 1000000000L
+        long slept
+
+        long currentTimeMillis() { return (long)(nanos / 1000000L) }
+        long nanoTime() { return nanos }
+        void sleep(long ms) { nanos += ms * 1000000L; slept += ms }
+        void advance(long ms) { nanos += ms * 1000000L }
+    }
+
+    static class FixedRate implements ThrottledOutputStream.Rate {
+        long bytesPerSec
+        long getBytesPerSec() { return bytesPerSec }
+    }
+
+    /** Blocks serializing snapshot chunks until released. */
+    static class BlockingSerializer extends GensonSerializer {
+        volatile CountDownLatch started
+        final CountDownLatch release = new CountDownLatch(1)
+
+        BlockingSerializer() { super([moo: ModelObject]) }
+
+        void serialize(Object value, boolean pretty, OutputStream out) throws IOException {
+            if (value instanceof Map && started != null) {
+                started.countDown()
+                release.await()
+            }
+            super.serialize(value, pretty, out)
+        }
+    }
+
+    private static boolean waitFor(Closure<Boolean> cond) {
+        for (int i = 0; i < 500; i++) {
+            if (cond()) return true
+            Thread.sleep(20)
+        }
+        return false
+    }
+
+    def "snapshot when replay budget is used up"() {
+        def s = new SnapshotScheduler(maxReplayM, 0, 10, new FakeClock())
+
+        expect:
+        s.onAppend(bytes, 100 * M, 100, 1000) == snapshot
+
+        where:
+        maxReplayM | bytes    | snapshot
+        10         | 5 * M    | false
+        10         | 11 * M   | true
+        0          | 45 * M   | false
+        0          | 51 * M   | true
+        80         | 51 * M   | true
+    }
+
+    def "snapshot is urgent when the log is nearly full"() {
+        def s = new SnapshotScheduler(0, 10, 10, new FakeClock())
+        boolean asap = s.onAppend(80 * M, 100 * M, 100, 1000)
+
+        expect:
+        asap
+        s.bytesPerSec == 0
+    }
+
+    def "snapshot is urgent when the log will fill before a snapshot can be written"() {
+        def clock = new FakeClock()
+        def s = new SnapshotScheduler(0, 10, 10, clock)
+        // last snapshot was 50M written at 5M/s so the next one will take about 10 secs
+        s.onSnapshotSaved(50 * M, 10000)
+        boolean asap = false
+        long bytes = 0
+        // fill the log at 10M/s so the 70M of headroom is gone in 7 secs
+        for (int i = 0; i < 20 && !asap; i++) {
+            clock.advance(100)
+            bytes += M
+            asap = s.onAppend(bytes + 29 * M, 100 * M, (int)M, 1000)
+        }
+
+        expect:
+        asap
+        bytes < 5 * M
+        s.bytesPerSec == 0
+    }
+
+    def "snapshot rate adapts to append latency"() {
+        def clock = new FakeClock()
+        def s = new SnapshotScheduler(0, 10, 10, clock)
+        long initial = s.bytesPerSec
+        for (int i = 0; i < 20; i++) {
+            clock.advance(100)
+            s.onAppend(M, 100 * M, 100, 50 * M)     // 50ms appends
+        }
+        long slow = s.bytesPerSec
+        for (int i = 0; i < 200; i++) {
+            clock.advance(100)
+            s.onAppend(M, 100 * M, 100, 1000)       // 1us appends
+        }
+        long recovered = s.bytesPerSec
+
+        expect:
+        initial == 10 * M
+        slow == M
+        recovered == 10 * M
+    }
+
+    def "throttle holds the configured rate"() {
+        def clock = new FakeClock()
+        def out = new ThrottledOutputStream(new ByteArrayOutputStream(), new FixedRate(bytesPerSec: M), clock)
+        byte[] buf = new byte[10000]
+        for (int i = 0; i < 1000; i++) out.write(buf)
+
+        expect:
+        out.count == 10 * M
+        clock.slept >= 9000
+        clock.slept <= 10000
+    }
+
+    def "throttle adapts when the rate changes"() {
+        def clock = new FakeClock()
+        def rate = new FixedRate(bytesPerSec: M)
+        def out = new ThrottledOutputStream(new ByteArrayOutputStream(), rate, clock)
+        byte[] buf = new byte[10000]
+        for (int i = 0; i < 200; i++) out.write(buf)
+        long first = clock.slept
+        rate.bytesPerSec = 4 * M
+        for (int i = 0; i < 400; i++) out.write(buf)
+        long second = clock.slept - first
+        rate.bytesPerSec = 0
+        for (int i = 0; i < 400; i++) out.write(buf)
+        long third = clock.slept - first - second
+
+        expect:
+        first >= 1800 && first <= 2000
+        second >= 900 && second <= 1100
+        third == 0
+    }
+
+    def "concurrent snapshot requests are coalesced"() {
+        File dir = new File("build/test-scheduler/coalesce")
+        if (dir.exists()) FileUtils.deleteDirectory(dir)
+        def serializer = new BlockingSerializer()
+        def store = new KeyValueStoreBuilder<String, ModelObject>().dir(dir).serializer(serializer).create()
+        def widgets = store.getMap("widgets")
+        widgets.put("1", new ModelObject("one"))
+        serializer.started = new CountDownLatch(1)
+        def first = Thread.start { store.saveSnapshot() }
+        serializer.started.await()
+
+        // these all happen while the first snapshot is being written
+        widgets.put("2", new ModelObject("two"))
+        def threads = (1..8).collect { i -> Thread.start { i % 2 ? store.saveSnapshot() : store.snapshotAsap() } }
+        threads*.join()
+        int duringFirst = store.snapshotScheduler.snapshotCount
+        serializer.release.countDown()
+        first.join()
+        boolean second = waitFor { store.snapshotScheduler.snapshotCount == 2 }
+        store.saveSnapshot()    // nothing new so this is a NOP
+        int count = store.snapshotScheduler.snapshotCount
+        store.close()
+        def files = SnapshotFile.list(dir)
+
+        expect:
+        duringFirst == 0
+        second
+        count == 2
+        files.length == 2
+        SnapshotFile.read(serializer, files[1]).widgets.keySet() == ["1", "2"] as Set
+    }
+}
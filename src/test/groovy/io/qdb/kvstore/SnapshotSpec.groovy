@@ -76,4 +76,25 @@ class SnapshotSpec extends Specification {
         one.name == "one"
         one.version == 1
     }
+
+    def "snapshots in separate dir"() {
+        File dir = new File(baseDir, "four")
+        File snapDir = new File(baseDir, "four-snapshots")
+        if (snapDir.exists()) FileUtils.deleteDirectory(snapDir)
+        def b = new KeyValueStoreBuilder<Integer, ModelObject>().dir(dir).snapshotDir(snapDir)
+                .alias("moo", ModelObject.class).snapshotMaxMBPerSec(1)
+        if (dir.exists()) FileUtils.deleteDirectory(dir)
+        def store = b.create()
+        store.getMap("widgets").put("1", new ModelObject("one"))
+        store.saveSnapshot()
+        store.close()
+        store = b.create()
+        def sz = store.getMap("widgets").size()
+        store.close()
+
+        expect:
+        dir.list(filter).length == 0
+        snapDir.list(filter).length == 1
+        sz == 1
+    }
 }